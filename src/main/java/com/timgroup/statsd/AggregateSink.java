@@ -0,0 +1,51 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+
+/**
+ * Receives the aggregates of each interval from a {@link StatsDServer}.
+ *
+ * <p>Each flush calls {@link #begin}, then one method per series recorded in the
+ * interval, then {@link #end}, all from the same thread. A series name is the
+ * metric name as received, including any InfluxDB style tags, e.g.
+ * {@code my.prefix.requests,region=eu}.</p>
+ *
+ * <p>A built-in implementation writing InfluxDB line protocol is available as
+ * {@link LineProtocolAggregateSink}.</p>
+ *
+ */
+public interface AggregateSink {
+
+    /**
+     * Start the aggregates of an interval.
+     *
+     * @param timestampMs
+     *     the end of the interval, in milliseconds since the epoch
+     */
+    void begin(long timestampMs) throws IOException;
+
+    /**
+     * @param count
+     *     the sum of the counter over the interval, scaled up by any sample rates
+     */
+    void counter(String series, long count) throws IOException;
+
+    /**
+     * @param value
+     *     the latest value of the gauge
+     */
+    void gauge(String series, double value) throws IOException;
+
+    /**
+     * @param type
+     *     either {@link MetricType#TIMER} or {@link MetricType#HISTOGRAM}
+     * @param count
+     *     the number of values recorded over the interval
+     */
+    void distribution(String series, MetricType type, long count, double sum, double min, double max) throws IOException;
+
+    /**
+     * Finish the aggregates of an interval.
+     */
+    void end() throws IOException;
+}
@@ -0,0 +1,307 @@
+package com.timgroup.statsd;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side aggregation of metrics, keyed by aspect, tags and metric type.
+ *
+ * <p>Series are held in a {@link SeriesRegistry} per metric type, so recording
+ * into a series which has been seen before neither renders its name nor allocates.
+ * The name is rendered once, by the given factory, when the series is first seen.</p>
+ *
+ * <p>Recording is thread-safe and lock-free for counters and gauges. Timers and
+ * histograms take a short per-series lock. {@link #snapshot} and
+ * {@link Aggregate#writeFields} must only ever be called from a single flushing
+ * thread.</p>
+ *
+ * <p>A series which records nothing for {@code maxIdleFlushes} snapshots in a row is
+ * dropped, and marked {@link Aggregate#isExpired expired} so that whoever holds it
+ * looks it up again. It is snapshotted once more at the next flush, so that values
+ * recorded into it as it was dropped are not lost.</p>
+ */
+final class Aggregator {
+
+    private final Map<MetricType, SeriesRegistry<Aggregate>> series =
+            new EnumMap<MetricType, SeriesRegistry<Aggregate>>(MetricType.class);
+    private final Map<MetricType, SeriesRegistry.Factory<Aggregate>> factories =
+            new EnumMap<MetricType, SeriesRegistry.Factory<Aggregate>>(MetricType.class);
+    /* guarded by the flushing thread */
+    private final List<Aggregate> retired = new ArrayList<Aggregate>();
+
+    /**
+     * @param names
+     *     renders the name of a series, as written to the sink
+     * @param maxIdleFlushes
+     *     how many snapshots in a row a series may record nothing before it is
+     *     dropped, or 0 to keep every series
+     */
+    Aggregator(final SeriesRegistry.Factory<String> names, final int maxIdleFlushes) {
+        final SeriesRegistry.Retention<Aggregate> retention = new SeriesRegistry.Retention<Aggregate>() {
+            @Override public boolean isExpired(Aggregate aggregate, int idleTicks) {
+                return maxIdleFlushes > 0 && aggregate.idleFlushes >= maxIdleFlushes;
+            }
+
+            @Override public long bytes(Aggregate aggregate) {
+                return AGGREGATE_BYTES + aggregate.series.length;
+            }
+        };
+        for (final MetricType type : MetricType.values()) {
+            series.put(type, new SeriesRegistry<Aggregate>(Integer.MAX_VALUE, retention));
+            factories.put(type, new SeriesRegistry.Factory<Aggregate>() {
+                @Override public Aggregate create(String aspect, String[] tags) {
+                    return newAggregate(names.create(aspect, tags), type);
+                }
+            });
+        }
+    }
+
+    void count(String aspect, String[] tags, long delta) {
+        ((Counter) aggregate(aspect, tags, MetricType.COUNTER)).add(delta);
+    }
+
+    void gauge(String aspect, String[] tags, double value) {
+        ((Gauge) aggregate(aspect, tags, MetricType.GAUGE)).set(value);
+    }
+
+    void sample(String aspect, String[] tags, double value, MetricType type) {
+        distribution(aspect, tags, type).add(value);
+    }
+
+    /**
+     * @return the distribution of the given series, which may be kept and added to directly
+     */
+    Distribution distribution(String aspect, String[] tags, MetricType type) {
+        return (Distribution) aggregate(aspect, tags, type);
+    }
+
+    /**
+     * @return all series aggregated so far
+     */
+    List<Aggregate> aggregates() {
+        final List<Aggregate> result = new ArrayList<Aggregate>();
+        for (SeriesRegistry<Aggregate> byKey : series.values()) {
+            byKey.addValuesTo(result);
+        }
+        return result;
+    }
+
+    /**
+     * {@link Aggregate#snapshot Snapshot} every series, adding those which recorded
+     * something to the given list, then drop the series which have been idle too long
+     * among the next {@link SeriesRegistry#EXPIRY_SLOTS} slots of each registry.
+     */
+    void snapshot(List<Aggregate> recorded) {
+        for (Aggregate aggregate : retired) {
+            if (aggregate.snapshot()) {
+                recorded.add(aggregate);
+            }
+        }
+        retired.clear();
+        for (Aggregate aggregate : aggregates()) {
+            if (aggregate.snapshot()) {
+                aggregate.idleFlushes = 0;
+                recorded.add(aggregate);
+            } else {
+                aggregate.idleFlushes++;
+            }
+        }
+        for (SeriesRegistry<Aggregate> byKey : series.values()) {
+            byKey.expire(SeriesRegistry.EXPIRY_SLOTS, retired);
+        }
+        for (Aggregate aggregate : retired) {
+            aggregate.expired = true;
+        }
+    }
+
+    /**
+     * @return an estimate of the bytes of heap held by the series aggregated so far
+     */
+    long retainedBytes() {
+        long bytes = 0;
+        for (SeriesRegistry<Aggregate> byKey : series.values()) {
+            bytes += byKey.retainedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of series aggregated so far
+     */
+    int size() {
+        int size = 0;
+        for (SeriesRegistry<Aggregate> byKey : series.values()) {
+            size += byKey.size();
+        }
+        return size;
+    }
+
+    private Aggregate aggregate(String aspect, String[] tags, MetricType type) {
+        return series.get(type).get(aspect, tags, factories.get(type));
+    }
+
+    private static Aggregate newAggregate(String key, MetricType type) {
+        switch (type) {
+            case COUNTER: return new Counter(key);
+            case GAUGE: return new Gauge(key);
+            default: return new Distribution(key);
+        }
+    }
+
+    abstract static class Aggregate {
+        final byte[] series;
+        /* guarded by the flushing thread */
+        int idleFlushes;
+        volatile boolean expired;
+
+        Aggregate(String series) {
+            this.series = series.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+        }
+
+        /**
+         * @return whether this series has been dropped, so that it must be looked up again to record into it
+         */
+        boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * Capture and reset the values recorded since the last snapshot.
+         *
+         * @return false if nothing was recorded since the last snapshot
+         */
+        abstract boolean snapshot();
+
+        /**
+         * Write the fields of the last snapshot, e.g. {@code count=3i}.
+         */
+        abstract void writeFields(ByteBuffer buffer);
+    }
+
+    static final class Counter extends Aggregate {
+        private final AtomicLong value = new AtomicLong();
+        private long snapshot;
+
+        Counter(String series) {
+            super(series);
+        }
+
+        void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        /**
+         * A counter whose deltas cancel out over an interval is skipped, as if nothing were recorded.
+         */
+        @Override boolean snapshot() {
+            snapshot = value.getAndSet(0);
+            return snapshot != 0;
+        }
+
+        @Override void writeFields(ByteBuffer buffer) {
+            buffer.put(COUNT);
+            Encoding.putLong(buffer, snapshot);
+            buffer.put((byte) 'i');
+        }
+    }
+
+    static final class Gauge extends Aggregate {
+        private final AtomicLong bits = new AtomicLong();
+        private volatile boolean dirty;
+        private double snapshot;
+
+        Gauge(String series) {
+            super(series);
+        }
+
+        void set(double value) {
+            bits.set(Double.doubleToRawLongBits(value));
+            dirty = true;
+        }
+
+        @Override boolean snapshot() {
+            if (!dirty) {
+                return false;
+            }
+            dirty = false;
+            snapshot = Double.longBitsToDouble(bits.get());
+            return true;
+        }
+
+        @Override void writeFields(ByteBuffer buffer) {
+            buffer.put(VALUE);
+            Encoding.putDouble(buffer, snapshot);
+        }
+    }
+
+    static final class Distribution extends Aggregate {
+        private long count;
+        private double sum;
+        private double min;
+        private double max;
+
+        private long snapshotCount;
+        private double snapshotSum;
+        private double snapshotMin;
+        private double snapshotMax;
+
+        Distribution(String series) {
+            super(series);
+        }
+
+        synchronized void add(double value) {
+            if (count == 0 || value < min) {
+                min = value;
+            }
+            if (count == 0 || value > max) {
+                max = value;
+            }
+            sum += value;
+            count++;
+        }
+
+        @Override synchronized boolean snapshot() {
+            if (count == 0) {
+                return false;
+            }
+            snapshotCount = count;
+            snapshotSum = sum;
+            snapshotMin = min;
+            snapshotMax = max;
+            count = 0;
+            sum = 0;
+            return true;
+        }
+
+        @Override void writeFields(ByteBuffer buffer) {
+            buffer.put(COUNT);
+            Encoding.putLong(buffer, snapshotCount);
+            buffer.put(SUM);
+            Encoding.putDouble(buffer, snapshotSum);
+            buffer.put(MIN);
+            Encoding.putDouble(buffer, snapshotMin);
+            buffer.put(MAX);
+            Encoding.putDouble(buffer, snapshotMax);
+            buffer.put(MEAN);
+            Encoding.putDouble(buffer, snapshotSum / snapshotCount);
+        }
+    }
+
+    /* an aggregate, its lock or atomic and its name array */
+    private static final int AGGREGATE_BYTES = 96;
+
+    private static final byte[] COUNT = ascii("count=");
+    private static final byte[] VALUE = ascii("value=");
+    private static final byte[] SUM = ascii("i,sum=");
+    private static final byte[] MIN = ascii(",min=");
+    private static final byte[] MAX = ascii(",max=");
+    private static final byte[] MEAN = ascii(",mean=");
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+    }
+}
@@ -0,0 +1,28 @@
+package com.timgroup.statsd;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method whose calls are to be counted, including calls which throw,
+ * once the object is wrapped by {@link StatsDInstrumentation}.
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Counted {
+
+    /**
+     * @return the aspect to record under
+     */
+    String value();
+
+    /**
+     * @return tags to record with, e.g. {@code "endpoint=lookup"}
+     */
+    String[] tags() default {};
+}
@@ -0,0 +1,39 @@
+package com.timgroup.statsd;
+
+/**
+ * Describes the outcome of stopping a client: how many of the metrics still
+ * pending at the time were flushed, and how many had to be abandoned when
+ * the stop deadline passed.
+ *
+ */
+public final class DrainResult {
+
+    static final DrainResult NOTHING_PENDING = new DrainResult(0, 0);
+
+    private final long flushed;
+    private final long abandoned;
+
+    public DrainResult(long flushed, long abandoned) {
+        this.flushed = flushed;
+        this.abandoned = abandoned;
+    }
+
+    /**
+     * @return the number of pending metrics written out while stopping
+     */
+    public long getFlushed() {
+        return flushed;
+    }
+
+    /**
+     * @return the number of pending metrics dropped because the deadline passed
+     */
+    public long getAbandoned() {
+        return abandoned;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DrainResult[flushed=%d, abandoned=%d]", flushed, abandoned);
+    }
+}
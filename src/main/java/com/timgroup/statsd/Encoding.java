@@ -0,0 +1,144 @@
+package com.timgroup.statsd;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.FieldPosition;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Helpers for writing metric values straight into a {@link ByteBuffer}.
+ */
+final class Encoding {
+
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+
+    /**
+     * Because NumberFormat is not thread-safe we cannot share instances across threads. Use a ThreadLocal to
+     * create one pre thread as this seems to offer a significant performance improvement over creating one per-thread:
+     * http://stackoverflow.com/a/1285297/2648
+     * https://github.com/indeedeng/java-dogstatsd-client/issues/4
+     */
+    private static final ThreadLocal<DoubleFormatter> DOUBLE_FORMATTERS = new ThreadLocal<DoubleFormatter>() {
+        @Override
+        protected DoubleFormatter initialValue() {
+            return new DoubleFormatter();
+        }
+    };
+
+    private Encoding() { }
+
+    /**
+     * Write the decimal representation of the given value without allocating.
+     */
+    static void putLong(ByteBuffer buffer, long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.put(MIN_LONG);
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        final int start = buffer.position();
+        final int end = start + digits;
+        if (end > buffer.limit()) {
+            throw new BufferOverflowException();
+        }
+        for (int i = end - 1; i >= start; i--) {
+            buffer.put(i, (byte) ('0' + (value % 10)));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * Write the given value with at most six fraction digits, using the formatting
+     * rules the client has always applied to floating-point values.
+     */
+    static void putDouble(ByteBuffer buffer, double value) {
+        DOUBLE_FORMATTERS.get().write(buffer, value);
+    }
+
+    /**
+     * Write the given nanoseconds as fractional milliseconds, exactly as {@link #putDouble}
+     * would write {@code nanos / 1e6}, but with integer arithmetic only.
+     */
+    static void putMillis(ByteBuffer buffer, long nanos) {
+        if (nanos < 0) {
+            putDouble(buffer, nanos / 1000000.0);
+            return;
+        }
+        putLong(buffer, nanos / 1000000);
+        int fraction = (int) (nanos % 1000000);
+        if (fraction == 0) {
+            return;
+        }
+        int digits = 6;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        final int start = buffer.position() + 1;
+        final int end = start + digits;
+        if (end > buffer.limit()) {
+            throw new BufferOverflowException();
+        }
+        buffer.put((byte) '.');
+        for (int i = end - 1; i >= start; i--) {
+            buffer.put(i, (byte) ('0' + (fraction % 10)));
+            fraction /= 10;
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * Format the given value as {@link #putDouble} would, for callers that need a String.
+     */
+    static String formatDouble(double value) {
+        return DOUBLE_FORMATTERS.get().numberFormat.format(value);
+    }
+
+    private static final class DoubleFormatter {
+        private final NumberFormat numberFormat;
+        private final StringBuffer scratch = new StringBuffer(32);
+        private final FieldPosition fieldPosition = new FieldPosition(0);
+
+        DoubleFormatter() {
+            // Always create the formatter for the US locale in order to avoid this bug:
+            // https://github.com/indeedeng/java-dogstatsd-client/issues/3
+            numberFormat = NumberFormat.getInstance(Locale.US);
+            numberFormat.setGroupingUsed(false);
+            numberFormat.setMaximumFractionDigits(6);
+
+            // we need to specify a value for Double.NaN that is recognized by dogStatsD
+            if (numberFormat instanceof DecimalFormat) { // better safe than a runtime error
+                final DecimalFormat decimalFormat = (DecimalFormat) numberFormat;
+                final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+                symbols.setNaN("NaN");
+                decimalFormat.setDecimalFormatSymbols(symbols);
+            }
+        }
+
+        void write(ByteBuffer buffer, double value) {
+            scratch.setLength(0);
+            numberFormat.format(value, scratch, fieldPosition);
+            final int length = scratch.length();
+            for (int i = 0; i < length; i++) {
+                final char c = scratch.charAt(i);
+                if (c >= 0x80) {
+                    // only infinity renders outside of ASCII
+                    buffer.put(scratch.toString().substring(i).getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET));
+                    return;
+                }
+                buffer.put((byte) c);
+            }
+        }
+    }
+}
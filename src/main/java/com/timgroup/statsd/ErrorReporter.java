@@ -0,0 +1,133 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.timgroup.statsd.StatsDClientErrorSummary.Category;
+
+/**
+ * Stands between a client and its error handler. With a reporting interval of
+ * zero, failures are passed straight on; otherwise they are counted by category,
+ * and the handler is given at most one {@link StatsDClientErrorSummary} per
+ * interval.
+ *
+ * <p>Recording a failure only increments a counter, so that a storm of failures
+ * during a network incident does not slow down a sender which is already behind.
+ * Short sends are recorded without building an exception at all.</p>
+ *
+ */
+final class ErrorReporter implements StatsDClientErrorHandler {
+
+    private static final Category[] CATEGORIES = Category.values();
+
+    private final StatsDClientErrorHandler delegate;
+    private final long intervalNanos;
+
+    private final AtomicLongArray counts = new AtomicLongArray(CATEGORIES.length);
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicReference<Exception> first = new AtomicReference<Exception>();
+    private final AtomicLong nextReport = new AtomicLong(System.nanoTime());
+    private volatile InetSocketAddress lastShortSendTarget;
+    private volatile int lastShortSendBytes;
+    private volatile int lastShortSendSize;
+
+    ErrorReporter(StatsDClientErrorHandler delegate, long intervalNanos) {
+        this.delegate = delegate;
+        this.intervalNanos = intervalNanos;
+    }
+
+    @Override
+    public void handle(Exception exception) {
+        if (intervalNanos == 0) {
+            delegate.handle(exception);
+            return;
+        }
+        first.compareAndSet(null, exception);
+        record(category(exception));
+    }
+
+    /**
+     * Record that only {@code sentBytes} of a {@code size} byte packet were written to the socket.
+     */
+    void shortSend(InetSocketAddress target, int sentBytes, int size) {
+        if (intervalNanos == 0) {
+            delegate.handle(shortSendException(target, sentBytes, size));
+            return;
+        }
+        lastShortSendTarget = target;
+        lastShortSendBytes = sentBytes;
+        lastShortSendSize = size;
+        record(Category.SHORT_SEND);
+    }
+
+    /**
+     * Pass on a summary of the failures recorded so far, if the interval since the last one has passed.
+     */
+    void reportIfDue() {
+        if (pending.get() == 0) {
+            return;
+        }
+        final long due = nextReport.get();
+        final long now = System.nanoTime();
+        if (now - due >= 0 && nextReport.compareAndSet(due, now + intervalNanos)) {
+            report();
+        }
+    }
+
+    /**
+     * Pass on a summary of the failures recorded so far, regardless of the interval.
+     */
+    void flush() {
+        if (pending.get() > 0) {
+            report();
+        }
+    }
+
+    private void record(Category category) {
+        counts.incrementAndGet(category.ordinal());
+        pending.incrementAndGet();
+        reportIfDue();
+    }
+
+    private void report() {
+        final long[] snapshot = new long[CATEGORIES.length];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.getAndSet(i, 0);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return;
+        }
+        pending.addAndGet(-total);
+        Exception cause = first.getAndSet(null);
+        final InetSocketAddress target = lastShortSendTarget;
+        if (cause == null && target != null) {
+            cause = shortSendException(target, lastShortSendBytes, lastShortSendSize);
+        }
+        delegate.handle(new StatsDClientErrorSummary(snapshot, intervalNanos, cause));
+    }
+
+    private static Category category(Exception exception) {
+        if (exception instanceof PortUnreachableException) {
+            return Category.UNREACHABLE;
+        }
+        if (exception instanceof UnknownHostException) {
+            return Category.UNRESOLVED;
+        }
+        if (exception instanceof IOException) {
+            return Category.IO;
+        }
+        return Category.OTHER;
+    }
+
+    private static IOException shortSendException(InetSocketAddress target, int sentBytes, int size) {
+        return new IOException("Could not send stats to host [" + target.getHostString() + ":" + target.getPort()
+                + "]. Only sent " + sentBytes + " bytes out of " + size + " bytes");
+    }
+}
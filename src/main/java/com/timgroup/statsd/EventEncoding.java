@@ -0,0 +1,144 @@
+package com.timgroup.statsd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes {@link StatsDEvent}s and {@link StatsDServiceCheck}s in the DogStatsD
+ * datagram format, truncated to fit in a packet of the given size.
+ *
+ * <p>Tags are always written in the DogStatsD style, whichever {@link LineEncoder}
+ * the client uses for metrics, as no other format has events.</p>
+ */
+final class EventEncoding {
+
+    private static final Charset UTF_8 = NonBlockingStatsDClient.MESSAGE_CHARSET;
+    private static final byte[] EVENT_START = ascii("_e{");
+    private static final byte[] EVENT_LENGTHS_END = ascii("}:");
+    private static final byte[] SERVICE_CHECK_START = ascii("_sc|");
+    private static final byte[] SERVICE_CHECK_MESSAGE = ascii("|m:");
+
+    private EventEncoding() { }
+
+    /**
+     * @return the event as one line of at most {@code maxBytes}, its text and then
+     *     its title truncated as needed
+     * @throws IllegalArgumentException
+     *     if the event does not fit even with an empty text and a one byte title
+     */
+    static byte[] event(StatsDEvent event, String[] constantTags, String[] tags, int maxBytes) {
+        final byte[] title = escapeNewlines(event.title).getBytes(UTF_8);
+        final byte[] text = escapeNewlines(event.text).getBytes(UTF_8);
+        final StringBuilder fields = new StringBuilder();
+        if (event.timestampMs > 0) {
+            fields.append("|d:").append(event.timestampMs / 1000);
+        }
+        appendField(fields, "|h:", event.hostname);
+        appendField(fields, "|k:", event.aggregationKey);
+        if (event.lowPriority) {
+            fields.append("|p:low");
+        }
+        appendField(fields, "|s:", event.sourceTypeName);
+        if (event.alertType != null) {
+            fields.append("|t:").append(event.alertType.symbol);
+        }
+        final byte[] trailer = fields.toString().getBytes(UTF_8);
+        final byte[] tagBytes = tags(constantTags, tags);
+
+        final int fixed = EVENT_START.length + digits(title.length) + 1 + digits(text.length)
+                + EVENT_LENGTHS_END.length + 1 + trailer.length + tagBytes.length;
+        final int budget = maxBytes - fixed;
+        if (budget < 1) {
+            throw new IllegalArgumentException("Event [" + event.title + "] does not fit in a packet");
+        }
+        final int titleLength = truncatedLength(title, budget);
+        final int textLength = truncatedLength(text, budget - titleLength);
+
+        final ByteBuffer line = ByteBuffer.allocate(fixed + titleLength + textLength);
+        line.put(EVENT_START);
+        Encoding.putLong(line, titleLength);
+        line.put((byte) ',');
+        Encoding.putLong(line, textLength);
+        line.put(EVENT_LENGTHS_END).put(title, 0, titleLength).put((byte) '|').put(text, 0, textLength);
+        line.put(trailer).put(tagBytes);
+        return Arrays.copyOf(line.array(), line.position());
+    }
+
+    /**
+     * @return the service check as one line of at most {@code maxBytes}, its message truncated as needed
+     * @throws IllegalArgumentException
+     *     if the check does not fit even without a message
+     */
+    static byte[] serviceCheck(StatsDServiceCheck check, String[] constantTags, String[] tags, int maxBytes) {
+        final StringBuilder fields = new StringBuilder(NameEscaper.DOGSTATSD_FIELD.escape(check.name)).append('|').append(check.status.value);
+        if (check.timestampMs > 0) {
+            fields.append("|d:").append(check.timestampMs / 1000);
+        }
+        appendField(fields, "|h:", check.hostname);
+        final byte[] head = fields.toString().getBytes(UTF_8);
+        final byte[] tagBytes = tags(constantTags, tags);
+        final byte[] message = check.message == null
+                ? new byte[0] : escapeNewlines(check.message).replace("m:", "m\\:").getBytes(UTF_8);
+
+        final int fixed = SERVICE_CHECK_START.length + head.length + tagBytes.length;
+        if (fixed > maxBytes) {
+            throw new IllegalArgumentException("Service check [" + check.name + "] does not fit in a packet");
+        }
+        final int messageLength = truncatedLength(message, maxBytes - fixed - SERVICE_CHECK_MESSAGE.length);
+
+        final ByteBuffer line = ByteBuffer.allocate(maxBytes);
+        line.put(SERVICE_CHECK_START).put(head).put(tagBytes);
+        if (messageLength > 0) {
+            line.put(SERVICE_CHECK_MESSAGE).put(message, 0, messageLength);
+        }
+        return Arrays.copyOf(line.array(), line.position());
+    }
+
+    private static byte[] tags(String[] constantTags, String[] tags) {
+        return LineEncoders.DOGSTATSD.seriesKey("", "", constantTags, tags).tail;
+    }
+
+    private static void appendField(StringBuilder sb, String marker, String value) {
+        if (value != null) {
+            sb.append(marker).append(NameEscaper.DOGSTATSD_FIELD.escape(value));
+        }
+    }
+
+    private static String escapeNewlines(String s) {
+        return s.indexOf('\n') < 0 ? s : s.replace("\n", "\\n");
+    }
+
+    /**
+     * @return the longest prefix of the given UTF-8 bytes of at most {@code max} bytes
+     *     which neither splits a character nor an escaped newline
+     */
+    private static int truncatedLength(byte[] utf8, int max) {
+        if (max <= 0) {
+            return 0;
+        }
+        if (utf8.length <= max) {
+            return utf8.length;
+        }
+        int length = max;
+        while (length > 0 && (utf8[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        if (length > 0 && utf8[length - 1] == '\\') {
+            length--;
+        }
+        return length;
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,187 @@
+package com.timgroup.statsd;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events for the stages of the client pipeline, so that the
+ * cost of recording metrics shows up in the same timeline as the application.
+ *
+ * <p>Every event is disabled by default, and costs next to nothing until a recording
+ * enables it, for example with
+ * {@code jcmd <pid> JFR.start settings=profile +com.timgroup.statsd.SenderFlush#enabled=true},
+ * or through a custom {@code .jfc} file. Timed events only record stages slower
+ * than their threshold, which may be lowered in the same way.</p>
+ *
+ * <p>A runtime image may leave out the {@code jdk.jfr} module, and then none of the
+ * event classes can be loaded. Code elsewhere creates an event only if
+ * {@link #AVAILABLE} is true, and otherwise skips it; only this class refers to
+ * {@code jdk.jfr} outside of the events themselves.</p>
+ *
+ */
+final class FlightRecorderEvents {
+
+    /** Whether the flight recorder is present, so that events may be created. */
+    static final boolean AVAILABLE = isAvailable();
+
+    private static final String CATEGORY = "StatsD";
+
+    private FlightRecorderEvents() { }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder", false, FlightRecorderEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Registers the given hook to sample {@link QueueDepth}, if the flight recorder is available.
+     *
+     * @return whether the hook was registered
+     */
+    static boolean addQueueDepthSampler(Runnable hook) {
+        if (!AVAILABLE) {
+            return false;
+        }
+        try {
+            FlightRecorder.addPeriodicEvent(QueueDepth.class, hook);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Unregisters a hook registered by {@link #addQueueDepthSampler}.
+     */
+    static void removeSampler(Runnable hook) {
+        try {
+            FlightRecorder.removePeriodicEvent(hook);
+        } catch (RuntimeException e) {
+            /* never registered */
+        }
+    }
+
+    @Name("com.timgroup.statsd.EnqueueStall")
+    @Label("StatsD Enqueue Stall")
+    @Description("A recording thread took longer than the threshold to queue a metric for the sender")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Threshold("1 ms")
+    static final class EnqueueStall extends Event {
+        @Label("Priority")
+        String priority;
+    }
+
+    @Name("com.timgroup.statsd.EnqueueDrop")
+    @Label("StatsD Enqueue Drop")
+    @Description("A metric was dropped because the lane of its priority was full")
+    @Category(CATEGORY)
+    @Enabled(false)
+    static final class EnqueueDrop extends Event {
+        @Label("Priority")
+        String priority;
+
+        @Label("Dropped Oldest")
+        @Description("Whether the oldest queued metric was dropped to make room, rather than the new one")
+        boolean droppedOldest;
+    }
+
+    @Name("com.timgroup.statsd.SenderFlush")
+    @Label("StatsD Sender Flush")
+    @Description("A packet of metric lines was written out by the sender")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class SenderFlush extends Event {
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+
+        @Label("Lines")
+        int lines;
+    }
+
+    @Name("com.timgroup.statsd.SocketSend")
+    @Label("StatsD Socket Send")
+    @Description("A packet was handed to the socket, including any retries of a full send buffer")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class SocketSend extends Event {
+        @Label("Bytes Sent")
+        @DataAmount
+        int bytes;
+
+        @Label("Retries")
+        int retries;
+    }
+
+    @Name("com.timgroup.statsd.SocketSendError")
+    @Label("StatsD Socket Send Error")
+    @Description("A packet could not be sent, or was only partly sent")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class SocketSendError extends Event {
+        @Label("Target")
+        String target;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("com.timgroup.statsd.QueueDepth")
+    @Label("StatsD Queue Depth")
+    @Description("The number of metrics waiting for the sender in each priority lane")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Period("1 s")
+    @StackTrace(false)
+    static final class QueueDepth extends Event {
+        @Label("Target")
+        String target;
+
+        @Label("High Priority")
+        int high;
+
+        @Label("Normal Priority")
+        int normal;
+    }
+
+    @Name("com.timgroup.statsd.AggregationFlush")
+    @Label("StatsD Aggregation Flush")
+    @Description("The aggregated series of a client were written out")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @Threshold("0 ms")
+    @StackTrace(false)
+    static final class AggregationFlush extends Event {
+        @Label("Series")
+        long series;
+
+        @Label("Abandoned Series")
+        long abandoned;
+
+        @Label("Batches")
+        int batches;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
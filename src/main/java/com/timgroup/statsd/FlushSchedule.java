@@ -0,0 +1,134 @@
+package com.timgroup.statsd;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes when a client flushes its aggregated metrics.
+ *
+ * <p>Flushes are aligned to wall-clock multiples of the interval, so that a ten
+ * second interval flushes at :00, :10, :20 and so on, and every point written by
+ * a flush is stamped with that boundary. Aggregates then line up with the buckets
+ * of the server rather than being smeared across two of them.</p>
+ *
+ * <p>To avoid every instance of a fleet flushing at the same instant, a jitter may
+ * be added. The jitter of an instance is derived from its instance id, and so is
+ * stable across flushes and restarts while differing between instances. Large
+ * series maps can additionally be spread over a window, pacing batches rather than
+ * writing them back to back.</p>
+ *
+ * <p>Instances are immutable:</p>
+ * <pre>
+ *   FlushSchedule.every(10, TimeUnit.SECONDS).withJitter(2, TimeUnit.SECONDS).spreadOver(1, TimeUnit.SECONDS)
+ * </pre>
+ *
+ */
+public final class FlushSchedule {
+
+    private final long intervalMs;
+    private final long jitterMs;
+    private final long spreadNanos;
+
+    private FlushSchedule(long intervalMs, long jitterMs, long spreadNanos) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive");
+        }
+        if (jitterMs < 0 || jitterMs >= intervalMs) {
+            throw new IllegalArgumentException("Flush jitter must be shorter than the flush interval");
+        }
+        this.intervalMs = intervalMs;
+        this.jitterMs = jitterMs;
+        this.spreadNanos = spreadNanos;
+    }
+
+    /**
+     * Flush at every wall-clock multiple of the given interval, without jitter or spreading.
+     */
+    public static FlushSchedule every(long interval, TimeUnit unit) {
+        return new FlushSchedule(unit.toMillis(interval), 0, 0);
+    }
+
+    /**
+     * Delay each flush by a fixed amount of up to {@code maxJitter}, derived from the
+     * name of the running JVM (typically {@code pid@hostname}).
+     *
+     * @throws IllegalArgumentException
+     *     if {@code maxJitter} is negative, or not shorter than the interval
+     */
+    public FlushSchedule withJitter(long maxJitter, TimeUnit unit) {
+        return withJitter(maxJitter, unit, ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    /**
+     * Delay each flush by a fixed amount of up to {@code maxJitter}, derived from the
+     * given instance id.
+     *
+     * @throws IllegalArgumentException
+     *     if {@code maxJitter} is negative, or not shorter than the interval
+     */
+    public FlushSchedule withJitter(long maxJitter, TimeUnit unit, String instanceId) {
+        final long maxJitterMs = unit.toMillis(maxJitter);
+        if (maxJitterMs < 0 || maxJitterMs >= intervalMs) {
+            throw new IllegalArgumentException("Flush jitter must be shorter than the flush interval");
+        }
+        return new FlushSchedule(intervalMs, maxJitterMs == 0 ? 0 : mix(instanceId.hashCode()) % maxJitterMs, spreadNanos);
+    }
+
+    /**
+     * Pace the batches of each flush so that writing them takes up to the given window.
+     *
+     * @throws IllegalArgumentException
+     *     if {@code window} is negative, or longer than the interval
+     */
+    public FlushSchedule spreadOver(long window, TimeUnit unit) {
+        final long spreadNanos = unit.toNanos(window);
+        if (spreadNanos < 0 || spreadNanos > TimeUnit.MILLISECONDS.toNanos(intervalMs)) {
+            throw new IllegalArgumentException("Flush spread must be between zero and the flush interval");
+        }
+        return new FlushSchedule(intervalMs, jitterMs, spreadNanos);
+    }
+
+    long intervalMillis() {
+        return intervalMs;
+    }
+
+    long jitterMillis() {
+        return jitterMs;
+    }
+
+    long spreadNanos() {
+        return spreadNanos;
+    }
+
+    /**
+     * @return the interval boundary following the given wall-clock time
+     */
+    long nextBoundary(long nowMs) {
+        return (Math.floorDiv(nowMs - jitterMs, intervalMs) + 1) * intervalMs;
+    }
+
+    /**
+     * @return how long to wait from the given wall-clock time until the next flush is due
+     */
+    long delayMillis(long nowMs) {
+        return nextBoundary(nowMs) + jitterMs - nowMs;
+    }
+
+    /**
+     * Spread the bits of a hash code, so that similar instance ids get dissimilar jitter.
+     */
+    private static long mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & 0x7fffffffL;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FlushSchedule[interval=%dms, jitter=%dms, spread=%dms]",
+                intervalMs, jitterMs, TimeUnit.NANOSECONDS.toMillis(spreadNanos));
+    }
+}
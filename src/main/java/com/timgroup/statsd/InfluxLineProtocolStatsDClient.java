@@ -0,0 +1,489 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A client which aggregates metrics in-process and writes them directly to InfluxDB
+ * in line protocol, skipping the StatsD server altogether.
+ *
+ * <p>Each flush interval, every series which received data is written as a single
+ * line of the form {@code measurement,tag=value field=value timestamp}:
+ * <ul>
+ *   <li>counters - {@code count=<sum>i}</li>
+ *   <li>gauges - {@code value=<latest>}</li>
+ *   <li>timers and histograms - {@code count=<n>i,sum=..,min=..,max=..,mean=..}</li>
+ * </ul>
+ * The measurement is the aspect with the client prefix applied, exactly as with
+ * {@link NonBlockingStatsDClient}. Tags are expected in {@code key=value} form;
+ * a tag without a value is written as {@code key=true}. NaN and infinite values
+ * cannot be represented in line protocol and are dropped.
+ * </p>
+ *
+ * <p>Flushes follow a {@link FlushSchedule}: by default they happen at every wall-clock
+ * multiple of the flush interval, and all points of a flush are stamped with that
+ * boundary. Lines are batched up to the limit of the {@link LineProtocolTransport} in use.
+ * Recording methods are non-blocking and are guaranteed not to throw an exception.</p>
+ *
+ * <p>A series which receives no data for {@value #MAX_IDLE_FLUSHES} flushes in a row is
+ * forgotten, so that series which come and go do not hold memory forever.</p>
+ *
+ * <p>As part of a clean system shutdown, the {@link #stop()} method should be invoked
+ * so that the values recorded since the last flush are written.</p>
+ *
+ */
+public final class InfluxLineProtocolStatsDClient implements StatsDClient {
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 10000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long DEFAULT_DRAIN_TIMEOUT_SECONDS = 30;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    private static final int MAX_IDLE_FLUSHES = 30;
+
+    private final String prefix;
+    private final String[] constantTags;
+    private final LineProtocolTransport transport;
+    private final StatsDClientErrorHandler handler;
+    private final Aggregator aggregator = new Aggregator(new SeriesRegistry.Factory<String>() {
+        @Override public String create(String aspect, String[] tags) {
+            return series(aspect, tags);
+        }
+    }, MAX_IDLE_FLUSHES);
+    private final ByteBuffer batch;
+    private final FlushSchedule schedule;
+
+    private final ScheduledExecutorService executor = NonBlockingStatsDClient.backgroundExecutor("InfluxDB-");
+
+    private volatile boolean stopping;
+    private volatile long lastFlushDurationNanos;
+    private volatile long lastFlushSeries;
+
+    /* guarded by the flushing thread */
+    private int flushBatches;
+    private long flushBytes;
+
+    /**
+     * Create a new client aggregating metrics and flushing them to the given
+     * transport every ten seconds.
+     *
+     * @param prefix
+     *     the prefix to apply to measurements written via this client
+     * @param constantTags
+     *     tags to be added to all content written
+     * @param transport
+     *     the destination of line protocol batches, see {@link LineProtocolTransports}
+     */
+    public InfluxLineProtocolStatsDClient(String prefix, String[] constantTags, LineProtocolTransport transport) {
+        this(prefix, constantTags, transport, DEFAULT_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS, null);
+    }
+
+    /**
+     * Create a new client aggregating metrics and flushing them to the given
+     * transport at every wall-clock multiple of the given interval. All
+     * exceptions thrown during usage are passed to the specified handler and
+     * then consumed, guaranteeing that failures in metrics will not affect
+     * normal code execution.
+     *
+     * @param prefix
+     *     the prefix to apply to measurements written via this client
+     * @param constantTags
+     *     tags to be added to all content written
+     * @param transport
+     *     the destination of line protocol batches, see {@link LineProtocolTransports}
+     * @param flushInterval
+     *     how often aggregated values are written
+     * @param unit
+     *     the unit of {@code flushInterval}
+     * @param errorHandler
+     *     handler to use when an exception occurs during usage; may be null
+     */
+    public InfluxLineProtocolStatsDClient(String prefix, String[] constantTags, LineProtocolTransport transport,
+                                          long flushInterval, TimeUnit unit, StatsDClientErrorHandler errorHandler) {
+        this(prefix, constantTags, transport, FlushSchedule.every(flushInterval, unit), errorHandler);
+    }
+
+    /**
+     * Create a new client aggregating metrics and flushing them to the given
+     * transport according to the given schedule. All exceptions thrown during
+     * usage are passed to the specified handler and then consumed, guaranteeing
+     * that failures in metrics will not affect normal code execution.
+     *
+     * @param prefix
+     *     the prefix to apply to measurements written via this client
+     * @param constantTags
+     *     tags to be added to all content written
+     * @param transport
+     *     the destination of line protocol batches, see {@link LineProtocolTransports}
+     * @param schedule
+     *     when aggregated values are written
+     * @param errorHandler
+     *     handler to use when an exception occurs during usage; may be null
+     */
+    public InfluxLineProtocolStatsDClient(String prefix, String[] constantTags, LineProtocolTransport transport,
+                                          FlushSchedule schedule, StatsDClientErrorHandler errorHandler) {
+        this.prefix = NonBlockingStatsDClient.prefix(prefix);
+        this.constantTags = NonBlockingStatsDClient.constantTags(constantTags);
+        this.transport = transport;
+        this.handler = errorHandler == null ? NonBlockingStatsDClient.NO_OP_HANDLER : errorHandler;
+        this.batch = ByteBuffer.allocate(transport.maxBatchBytes());
+        this.schedule = schedule;
+        scheduleFlush(0);
+    }
+
+    /**
+     * Cleanly shut down this client, spending up to thirty seconds writing the
+     * values recorded since the last flush.
+     */
+    @Override
+    public void stop() {
+        stop(DEFAULT_DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Cleanly shut down this client, writing the values recorded since the last
+     * flush until either all series are written or the timeout has passed.
+     *
+     * @return how many series were flushed, and how many were abandoned
+     */
+    @Override
+    public DrainResult stop(long timeout, TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        DrainResult result = DrainResult.NOTHING_PENDING;
+        stopping = true;
+        try {
+            executor.shutdown();
+            if (executor.awaitTermination(timeout, unit)) {
+                /* stamped like the scheduled flush of the interval it ends early */
+                result = flush(schedule.nextBoundary(System.currentTimeMillis()), deadline, 0);
+            } else {
+                /* a scheduled flush is still writing; flushing alongside it would corrupt the batch */
+                result = new DrainResult(0, aggregator.size());
+            }
+        }
+        catch (Exception e) {
+            handler.handle(e);
+        }
+        finally {
+            try {
+                transport.close();
+            }
+            catch (IOException e) {
+                handler.handle(e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return how long the most recent flush took, including any pacing
+     */
+    public long getLastFlushDuration(TimeUnit unit) {
+        return unit.convert(lastFlushDurationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return how many series the most recent flush wrote
+     */
+    public long getLastFlushSeries() {
+        return lastFlushSeries;
+    }
+
+    /**
+     * @return an estimate of the bytes of heap held for the series this client is aggregating
+     */
+    public long getRetainedSeriesBytes() {
+        return aggregator.retainedBytes();
+    }
+
+    @Override public void count(String aspect, long delta, String... tags) {
+        try {
+            aggregator.count(aspect, tags, delta);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    @Override public void incrementCounter(String aspect, String... tags) {
+        count(aspect, 1, tags);
+    }
+
+    @Override public void increment(String aspect, String... tags) {
+        incrementCounter(aspect, tags);
+    }
+
+    @Override public void decrementCounter(String aspect, String... tags) {
+        count(aspect, -1, tags);
+    }
+
+    @Override public void decrement(String aspect, String... tags) {
+        decrementCounter(aspect, tags);
+    }
+
+    @Override public void recordGaugeValue(String aspect, double value, String... tags) {
+        try {
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                aggregator.gauge(aspect, tags, value);
+            }
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    @Override public void gauge(String aspect, double value, String... tags) {
+        recordGaugeValue(aspect, value, tags);
+    }
+
+    @Override public void recordGaugeValue(String aspect, long value, String... tags) {
+        try {
+            aggregator.gauge(aspect, tags, value);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    @Override public void gauge(String aspect, long value, String... tags) {
+        recordGaugeValue(aspect, value, tags);
+    }
+
+    @Override public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
+        try {
+            aggregator.sample(aspect, tags, timeInMs, MetricType.TIMER);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    @Override public void time(String aspect, long value, String... tags) {
+        recordExecutionTime(aspect, value, tags);
+    }
+
+    @Override public void recordHistogramValue(String aspect, double value, String... tags) {
+        try {
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                aggregator.sample(aspect, tags, value, MetricType.HISTOGRAM);
+            }
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    @Override public void histogram(String aspect, double value, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    @Override public void recordHistogramValue(String aspect, long value, String... tags) {
+        try {
+            aggregator.sample(aspect, tags, value, MetricType.HISTOGRAM);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    @Override public void histogram(String aspect, long value, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    @Override public StatsDTimer timer(final String aspect, final String... tags) {
+        return new StatsDTimer() {
+            private volatile Aggregator.Distribution distribution = timerDistribution(aspect, tags);
+
+            @Override protected void recordMillis(double elapsedMillis) {
+                try {
+                    Aggregator.Distribution current = distribution;
+                    if (current == null || current.isExpired()) {
+                        current = aggregator.distribution(aspect, tags, MetricType.TIMER);
+                        distribution = current;
+                    }
+                    current.add(elapsedMillis);
+                } catch (Exception e) {
+                    handler.handle(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the distribution a timer records into, or null if it could not be
+     *     created, in which case the timer tries again when it records
+     */
+    private Aggregator.Distribution timerDistribution(String aspect, String[] tags) {
+        try {
+            return aggregator.distribution(aspect, tags, MetricType.TIMER);
+        } catch (Exception e) {
+            handler.handle(e);
+            return null;
+        }
+    }
+
+    /**
+     * Events are a DataDog extension which line protocol has no counterpart for; they are dropped.
+     */
+    @Override public void recordEvent(StatsDEvent event, String... tags) {
+        /* not supported by line protocol */
+    }
+
+    /**
+     * Service checks are a DataDog extension which line protocol has no counterpart for; they are dropped.
+     */
+    @Override public void recordServiceCheckRun(StatsDServiceCheck check, String... tags) {
+        /* not supported by line protocol */
+    }
+
+    /**
+     * Render the measurement and tag set of a line, escaped as line protocol requires.
+     */
+    String series(String aspect, String[] tags) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(NameEscaper.LINE_PROTOCOL_MEASUREMENT.escape(prefix));
+        sb.append(NameEscaper.LINE_PROTOCOL_MEASUREMENT.escape(aspect));
+        appendTags(sb, constantTags);
+        appendTags(sb, tags);
+        return sb.toString();
+    }
+
+    private static void appendTags(StringBuilder sb, String[] tags) {
+        if (tags == null) {
+            return;
+        }
+        for (int n = tags.length - 1; n >= 0; n--) {
+            final String tag = NameEscaper.LINE_PROTOCOL_TAG.escape(tags[n]);
+            sb.append(',').append(tag);
+            if (tag.indexOf('=') < 0) {
+                sb.append("=true");
+            }
+        }
+    }
+
+    /**
+     * Write every series which received data since the last flush. Only ever
+     * called from one thread at a time.
+     *
+     * @param timestampMs
+     *     the wall-clock time to stamp all points with
+     * @param deadline
+     *     the {@link System#nanoTime()} after which remaining series are abandoned,
+     *     or {@link #NO_DEADLINE}
+     * @param spreadNanos
+     *     the window over which to pace the batches of this flush, or 0 to write
+     *     them back to back
+     * @return how many series were written, and how many were abandoned
+     */
+    DrainResult flush(long timestampMs, long deadline, long spreadNanos) {
+        final FlightRecorderEvents.AggregationFlush event = FlightRecorderEvents.AVAILABLE ? new FlightRecorderEvents.AggregationFlush() : null;
+        if (event != null) {
+            event.begin();
+        }
+        flushBatches = 0;
+        flushBytes = 0;
+        final long start = System.nanoTime();
+        final long timestamp = timestampMs * NANOS_PER_MILLI;
+
+        /* capture every series at once, so that pacing does not shift values into the next interval */
+        final List<Aggregator.Aggregate> pending = new ArrayList<Aggregator.Aggregate>();
+        aggregator.snapshot(pending);
+
+        long flushed = 0;
+        long abandoned = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            if (deadline != NO_DEADLINE && System.nanoTime() - deadline > 0) {
+                abandoned = pending.size() - i;
+                break;
+            }
+            try {
+                if (append(pending.get(i), timestamp) && spreadNanos > 0) {
+                    pace(start + spreadNanos * i / pending.size());
+                }
+                flushed++;
+            } catch (Exception e) {
+                handler.handle(e);
+            }
+        }
+        try {
+            send();
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+        lastFlushDurationNanos = System.nanoTime() - start;
+        lastFlushSeries = flushed;
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.series = flushed;
+                event.abandoned = abandoned;
+                event.batches = flushBatches;
+                event.bytes = flushBytes;
+                event.commit();
+            }
+        }
+        return new DrainResult(flushed, abandoned);
+    }
+
+    private void pace(long until) {
+        long remaining;
+        while (!stopping && (remaining = until - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void scheduleFlush(long notBeforeMs) {
+        final long now = Math.max(System.currentTimeMillis(), notBeforeMs);
+        final long boundary = schedule.nextBoundary(now);
+        try {
+            executor.schedule(new Runnable() {
+                @Override public void run() {
+                    flush(boundary, NO_DEADLINE, schedule.spreadNanos());
+                    scheduleFlush(boundary + schedule.jitterMillis());
+                }
+            }, schedule.delayMillis(now), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            /* the client is stopping */
+        }
+    }
+
+    /**
+     * @return true if a full batch had to be sent to make room for the line
+     */
+    private boolean append(Aggregator.Aggregate aggregate, long timestamp) throws IOException {
+        final int start = batch.position();
+        try {
+            if (start > 0) {
+                batch.put((byte) '\n');
+            }
+            batch.put(aggregate.series).put((byte) ' ');
+            aggregate.writeFields(batch);
+            batch.put((byte) ' ');
+            Encoding.putLong(batch, timestamp);
+            return false;
+        } catch (BufferOverflowException e) {
+            batch.position(start);
+            if (start == 0) {
+                throw new IOException(String.format("Line for series [%s] does not fit in a batch of %d bytes",
+                        new String(aggregate.series, NonBlockingStatsDClient.MESSAGE_CHARSET), batch.capacity()));
+            }
+            send();
+            append(aggregate, timestamp);
+            return true;
+        }
+    }
+
+    private void send() throws IOException {
+        if (batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        flushBatches++;
+        flushBytes += batch.remaining();
+        try {
+            transport.write(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+}
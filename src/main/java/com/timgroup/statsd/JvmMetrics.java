@@ -0,0 +1,280 @@
+package com.timgroup.statsd;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Records the runtime metrics of the JVM through a {@link StatsDClient}:
+ * <ul>
+ *   <li>{@code jvm.gc.pause} - a timer per collection, tagged with the collector and action</li>
+ *   <li>{@code jvm.memory.allocated} - a counter of the bytes allocated in the young
+ *       generation, measured at each collection</li>
+ *   <li>{@code jvm.memory.used}, {@code .committed}, {@code .max} - gauges tagged {@code area=heap}
+ *       or {@code area=nonheap}</li>
+ *   <li>{@code jvm.memory.pool.used}, {@code .committed}, {@code .max} - gauges per memory pool</li>
+ *   <li>{@code jvm.threads.live}, {@code .daemon}, {@code .peak} - thread count gauges</li>
+ *   <li>{@code jvm.buffer.count}, {@code .used}, {@code .capacity} - gauges per buffer pool,
+ *       such as {@code pool=direct}</li>
+ * </ul>
+ *
+ * <p>Collections are recorded as they happen, from the collectors' notifications.
+ * Everything else is sampled on one shared schedule, by a single daemon thread. The
+ * management beans are looked up, and the tags of every series rendered, once when
+ * the collector starts, so that a sample makes no JMX lookups and builds no strings.</p>
+ *
+ * <p>Sampling is held to a CPU budget, a fraction of the sampling interval. A sample
+ * which costs more than its budget causes the samples after it to be skipped until
+ * the average is back within budget.</p>
+ *
+ */
+public final class JvmMetrics {
+
+    /** One thousandth of the sampling interval. */
+    public static final double DEFAULT_CPU_BUDGET = 0.001;
+
+    private static final int MAX_SKIPPED_SAMPLES = 60;
+    private static final long STOP_TIMEOUT_SECONDS = 1;
+    private static final String[] NO_TAGS = new String[0];
+    private static final String[] HEAP_TAGS = { "area=heap" };
+    private static final String[] NON_HEAP_TAGS = { "area=nonheap" };
+    private static final String[] MEMORY_ASPECTS = { "jvm.memory.used", "jvm.memory.committed", "jvm.memory.max" };
+    private static final String[] POOL_ASPECTS = { "jvm.memory.pool.used", "jvm.memory.pool.committed", "jvm.memory.pool.max" };
+
+    private final StatsDClient client;
+    private final long budgetNanos;
+    private final ScheduledExecutorService executor = NonBlockingStatsDClient.backgroundExecutor("StatsD-jvm-");
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTimeSupported;
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    private final List<String[]> poolTags = new ArrayList<String[]>();
+    private final List<BufferPoolMXBean> bufferPools = new ArrayList<BufferPoolMXBean>();
+    private final List<String[]> bufferPoolTags = new ArrayList<String[]>();
+    private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+    /* guarded by this */
+    private final Map<String, String[]> gcTags = new HashMap<String, String[]>();
+    private final Map<String, Long> youngUsedAfterGc = new HashMap<String, Long>();
+
+    /* guarded by the sampling thread */
+    private int skip;
+
+    private volatile long lastSampleNanos;
+    private volatile long samplesSkipped;
+
+    private final NotificationListener gcListener = new NotificationListener() {
+        @Override public void handleNotification(Notification notification, Object handback) {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                recordCollection(GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()));
+            }
+        }
+    };
+
+    /**
+     * Start recording with the default CPU budget.
+     *
+     * @param client
+     *     the client to record through
+     * @param interval
+     *     how often to sample memory, threads and buffer pools
+     */
+    public JvmMetrics(StatsDClient client, long interval, TimeUnit unit) {
+        this(client, interval, unit, DEFAULT_CPU_BUDGET);
+    }
+
+    /**
+     * Start recording.
+     *
+     * @param client
+     *     the client to record through
+     * @param interval
+     *     how often to sample memory, threads and buffer pools
+     * @param cpuBudget
+     *     the fraction of the interval which sampling may take, on average
+     */
+    public JvmMetrics(StatsDClient client, long interval, TimeUnit unit, double cpuBudget) {
+        this.client = client;
+        this.budgetNanos = (long) (unit.toNanos(interval) * cpuBudget);
+        this.cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.isValid()) {
+                pools.add(pool);
+                poolTags.add(new String[] { "pool=" + tagValue(pool.getName()) });
+            }
+        }
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            bufferPools.add(pool);
+            bufferPoolTags.add(new String[] { "pool=" + tagValue(pool.getName()) });
+        }
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                final NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(gcListener, null, null);
+                emitters.add(emitter);
+            }
+        }
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override public void run() {
+                sample();
+            }
+        }, 0, interval, unit);
+    }
+
+    /**
+     * Stop recording, letting a sample which is being taken finish. The client is left running.
+     */
+    public void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(gcListener);
+            } catch (Exception e) {
+                /* never registered */
+            }
+        }
+    }
+
+    /**
+     * @return the CPU time, or failing that the wall-clock time, taken by the most recent sample
+     */
+    public long getLastSampleCost(TimeUnit unit) {
+        return unit.convert(lastSampleNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of samples skipped to stay within the CPU budget
+     */
+    public long getSamplesSkipped() {
+        return samplesSkipped;
+    }
+
+    private void sample() {
+        if (skip > 0) {
+            skip--;
+            samplesSkipped++;
+            return;
+        }
+        final long start = now();
+        try {
+            recordUsage(MEMORY_ASPECTS, memory.getHeapMemoryUsage(), HEAP_TAGS);
+            recordUsage(MEMORY_ASPECTS, memory.getNonHeapMemoryUsage(), NON_HEAP_TAGS);
+            for (int i = 0; i < pools.size(); i++) {
+                final MemoryUsage usage = pools.get(i).getUsage();
+                if (usage != null) {
+                    recordUsage(POOL_ASPECTS, usage, poolTags.get(i));
+                }
+            }
+            client.gauge("jvm.threads.live", threads.getThreadCount(), NO_TAGS);
+            client.gauge("jvm.threads.daemon", threads.getDaemonThreadCount(), NO_TAGS);
+            client.gauge("jvm.threads.peak", threads.getPeakThreadCount(), NO_TAGS);
+            for (int i = 0; i < bufferPools.size(); i++) {
+                final BufferPoolMXBean pool = bufferPools.get(i);
+                client.gauge("jvm.buffer.count", pool.getCount(), bufferPoolTags.get(i));
+                client.gauge("jvm.buffer.used", pool.getMemoryUsed(), bufferPoolTags.get(i));
+                client.gauge("jvm.buffer.capacity", pool.getTotalCapacity(), bufferPoolTags.get(i));
+            }
+        } catch (Exception e) {
+            /* a pool may disappear at any time; try again next sample */
+        }
+        final long cost = now() - start;
+        lastSampleNanos = cost;
+        if (budgetNanos > 0 && cost > budgetNanos) {
+            skip = (int) Math.min(cost / budgetNanos, MAX_SKIPPED_SAMPLES);
+        }
+    }
+
+    private void recordUsage(String[] aspects, MemoryUsage usage, String[] tags) {
+        client.gauge(aspects[0], usage.getUsed(), tags);
+        client.gauge(aspects[1], usage.getCommitted(), tags);
+        if (usage.getMax() >= 0) {
+            client.gauge(aspects[2], usage.getMax(), tags);
+        }
+    }
+
+    private synchronized void recordCollection(GarbageCollectionNotificationInfo info) {
+        final String key = info.getGcName() + '\0' + info.getGcAction();
+        String[] tags = gcTags.get(key);
+        if (tags == null) {
+            tags = new String[] { "gc=" + tagValue(info.getGcName()), "action=" + tagValue(info.getGcAction()) };
+            gcTags.put(key, tags);
+        }
+        final GcInfo gc = info.getGcInfo();
+        client.recordExecutionTime("jvm.gc.pause", gc.getDuration(), tags);
+
+        long allocated = 0;
+        for (Map.Entry<String, MemoryUsage> before : gc.getMemoryUsageBeforeGc().entrySet()) {
+            if (!isYoungPool(before.getKey())) {
+                continue;
+            }
+            final Long previous = youngUsedAfterGc.get(before.getKey());
+            allocated += Math.max(0, before.getValue().getUsed() - (previous == null ? 0 : previous));
+            final MemoryUsage after = gc.getMemoryUsageAfterGc().get(before.getKey());
+            youngUsedAfterGc.put(before.getKey(), after == null ? 0 : after.getUsed());
+        }
+        if (allocated > 0) {
+            client.count("jvm.memory.allocated", allocated, NO_TAGS);
+        }
+    }
+
+    private long now() {
+        return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * @return whether the named pool is where new objects are allocated
+     */
+    private boolean isYoungPool(String name) {
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getName().equals(name)) {
+                return pool.getType() == MemoryType.HEAP && (name.contains("Eden") || name.contains("Nursery"));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace each run of anything but letters, digits, '.', '-' and '_' with a single
+     * '_', as pool and collector names often contain spaces and quotes.
+     */
+    static String tagValue(String name) {
+        final StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_') {
+                sb.append(c);
+            } else if (sb.length() > 0 && sb.charAt(sb.length() - 1) != '_') {
+                sb.append('_');
+            }
+        }
+        while (sb.length() > 0 && sb.charAt(sb.length() - 1) == '_') {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+}
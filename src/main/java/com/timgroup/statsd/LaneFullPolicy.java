@@ -0,0 +1,13 @@
+package com.timgroup.statsd;
+
+/**
+ * What a client does with a metric recorded into a priority lane whose buffer is full.
+ *
+ * @see NonBlockingStatsDClientBuilder#lane(Priority, int, LaneFullPolicy)
+ */
+public enum LaneFullPolicy {
+    /** Drop the metric being recorded. */
+    DROP_NEWEST,
+    /** Drop the oldest metric queued in the lane, to make room for the one being recorded. */
+    DROP_OLDEST
+}
@@ -0,0 +1,66 @@
+package com.timgroup.statsd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Describes the wire format of a single metric line.
+ *
+ * <p>Encoding happens in two steps. {@link #seriesKey} renders the parts of a
+ * line which only depend on the name and tags of a metric; the result may be
+ * kept and reused for as long as those do not change. The {@code encode}
+ * methods then write a complete line for a given key, value and type directly
+ * into a {@link ByteBuffer}, and must not allocate.</p>
+ *
+ * <p>Built-in implementations are available from {@link LineEncoders}.</p>
+ *
+ */
+public interface LineEncoder {
+
+    /**
+     * Render the invariant parts of a metric line.
+     *
+     * @param prefix
+     *     the client prefix, already terminated by a '.' if not empty
+     * @param aspect
+     *     the name of the metric
+     * @param constantTags
+     *     tags applied to all content sent by the client; may be null
+     * @param tags
+     *     tags supplied with this metric; may be null
+     * @return the rendered key
+     */
+    SeriesKey seriesKey(String prefix, String aspect, String[] constantTags, String[] tags);
+
+    /**
+     * @return the number of bytes to reserve before calling {@code encode} for the given key;
+     *     values with unusually long representations may still exceed this
+     */
+    int estimateLength(SeriesKey key);
+
+    /**
+     * Write a single metric line, without a trailing line separator.
+     *
+     * @throws java.nio.BufferOverflowException
+     *     if the buffer does not have room for the line
+     */
+    void encode(ByteBuffer buffer, SeriesKey key, long value, MetricType type);
+
+    /**
+     * Write a single metric line, without a trailing line separator.
+     *
+     * @throws java.nio.BufferOverflowException
+     *     if the buffer does not have room for the line
+     */
+    void encode(ByteBuffer buffer, SeriesKey key, double value, MetricType type);
+
+    /**
+     * Write a single metric line for a time given in nanoseconds, as fractional
+     * milliseconds, without a trailing line separator.
+     *
+     * @throws java.nio.BufferOverflowException
+     *     if the buffer does not have room for the line
+     */
+    default void encodeNanos(ByteBuffer buffer, SeriesKey key, long elapsedNanos, MetricType type) {
+        encode(buffer, key, elapsedNanos / 1000000.0, type);
+    }
+}
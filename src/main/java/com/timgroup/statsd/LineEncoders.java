@@ -0,0 +1,112 @@
+package com.timgroup.statsd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The built-in {@link LineEncoder} implementations.
+ *
+ * <ul>
+ *   <li>{@link #INFLUX} - tags are appended to the metric name, as in {@code aspect,tag=v:1|c}</li>
+ *   <li>{@link #DOGSTATSD} - tags follow the type, as in {@code aspect:1|c|#tag:v}</li>
+ *   <li>{@link #UNTAGGED} - plain statsd, tags are dropped, as in {@code aspect:1|c}</li>
+ * </ul>
+ *
+ * <p>Each makes aspects and tags safe for its format with a {@link NameEscaper}, so
+ * that a comma, space, colon, pipe or newline in them cannot corrupt a line.</p>
+ *
+ */
+public final class LineEncoders {
+
+    /** Room reserved for the value and type of a line; longer values are rare but possible. */
+    private static final int VALUE_AND_TYPE_ESTIMATE = 32;
+
+    /**
+     * InfluxDB style tags, appended to the metric name. This is the default format.
+     */
+    public static final LineEncoder INFLUX = new DelimitedLineEncoder() {
+        @Override
+        public SeriesKey seriesKey(String prefix, String aspect, String[] constantTags, String[] tags) {
+            final String constantTagsRendered = constantTags == null ? null : NonBlockingStatsDClient.tagString(constantTags, null);
+            return new SeriesKey(name(prefix, aspect) + NonBlockingStatsDClient.tagString(tags, constantTagsRendered), null);
+        }
+    };
+
+    /**
+     * DogStatsD style tags, given after a {@code |#} marker. Tags written in the InfluxDB
+     * {@code key=value} style are converted to the DogStatsD {@code key:value} style.
+     */
+    public static final LineEncoder DOGSTATSD = new DelimitedLineEncoder() {
+        @Override
+        public SeriesKey seriesKey(String prefix, String aspect, String[] constantTags, String[] tags) {
+            final StringBuilder sb = new StringBuilder();
+            appendDogStatsDTags(sb, constantTags);
+            appendDogStatsDTags(sb, tags);
+            return new SeriesKey(name(prefix, aspect), sb.length() == 0 ? null : sb.toString());
+        }
+
+        private void appendDogStatsDTags(StringBuilder sb, String[] tags) {
+            if (tags == null) {
+                return;
+            }
+            for (int n = tags.length - 1; n >= 0; n--) {
+                sb.append(sb.length() == 0 ? "|#" : ",");
+                final String tag = NameEscaper.DOGSTATSD_TAG.escape(tags[n]);
+                final int separator = tag.indexOf('=');
+                if (separator < 0) {
+                    sb.append(tag);
+                } else {
+                    sb.append(tag, 0, separator).append(':').append(tag, separator + 1, tag.length());
+                }
+            }
+        }
+    };
+
+    /**
+     * Plain statsd, which has no notion of tags. All tags are dropped.
+     */
+    public static final LineEncoder UNTAGGED = new DelimitedLineEncoder() {
+        @Override
+        public SeriesKey seriesKey(String prefix, String aspect, String[] constantTags, String[] tags) {
+            return new SeriesKey(name(prefix, aspect), null);
+        }
+    };
+
+    private LineEncoders() { }
+
+    private static String name(String prefix, String aspect) {
+        return NameEscaper.STATSD_ASPECT.escape(prefix) + NameEscaper.STATSD_ASPECT.escape(aspect);
+    }
+
+    /**
+     * Writes lines of the form {@code <head>:<value>|<type><tail>}, which covers all of the
+     * built-in formats.
+     */
+    private abstract static class DelimitedLineEncoder implements LineEncoder {
+
+        @Override
+        public int estimateLength(SeriesKey key) {
+            return key.length() + VALUE_AND_TYPE_ESTIMATE;
+        }
+
+        @Override
+        public void encode(ByteBuffer buffer, SeriesKey key, long value, MetricType type) {
+            buffer.put(key.head).put((byte) ':');
+            Encoding.putLong(buffer, value);
+            buffer.put((byte) '|').put(type.symbolBytes).put(key.tail);
+        }
+
+        @Override
+        public void encode(ByteBuffer buffer, SeriesKey key, double value, MetricType type) {
+            buffer.put(key.head).put((byte) ':');
+            Encoding.putDouble(buffer, value);
+            buffer.put((byte) '|').put(type.symbolBytes).put(key.tail);
+        }
+
+        @Override
+        public void encodeNanos(ByteBuffer buffer, SeriesKey key, long elapsedNanos, MetricType type) {
+            buffer.put(key.head).put((byte) ':');
+            Encoding.putMillis(buffer, elapsedNanos);
+            buffer.put((byte) '|').put(type.symbolBytes).put(key.tail);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link AggregateSink} which writes each interval as InfluxDB line protocol to a
+ * {@link LineProtocolTransport}, with the same fields as an
+ * {@link InfluxLineProtocolStatsDClient}:
+ * <ul>
+ *   <li>counters - {@code count=<sum>i}</li>
+ *   <li>gauges - {@code value=<latest>}</li>
+ *   <li>timers and histograms - {@code count=<n>i,sum=..,min=..,max=..,mean=..}</li>
+ * </ul>
+ *
+ * <p>Gauges which are not finite are skipped, as InfluxDB cannot store them.</p>
+ *
+ */
+public final class LineProtocolAggregateSink implements AggregateSink {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static final byte[] COUNT = ascii(" count=");
+    private static final byte[] VALUE = ascii(" value=");
+    private static final byte[] SUM = ascii("i,sum=");
+    private static final byte[] MIN = ascii(",min=");
+    private static final byte[] MAX = ascii(",max=");
+    private static final byte[] MEAN = ascii(",mean=");
+
+    private final LineProtocolTransport transport;
+    private final ByteBuffer batch;
+    private long timestamp;
+
+    public LineProtocolAggregateSink(LineProtocolTransport transport) {
+        this.transport = transport;
+        this.batch = ByteBuffer.allocate(transport.maxBatchBytes());
+    }
+
+    @Override
+    public void begin(long timestampMs) {
+        timestamp = timestampMs * NANOS_PER_MILLI;
+    }
+
+    @Override
+    public void counter(String series, long count) throws IOException {
+        final byte[] name = series.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+        final int start = batch.position();
+        try {
+            startLine(name);
+            batch.put(COUNT);
+            Encoding.putLong(batch, count);
+            batch.put((byte) 'i');
+            endLine();
+        } catch (BufferOverflowException e) {
+            retry(start, series);
+            counter(series, count);
+        }
+    }
+
+    @Override
+    public void gauge(String series, double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        final byte[] name = series.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+        final int start = batch.position();
+        try {
+            startLine(name);
+            batch.put(VALUE);
+            Encoding.putDouble(batch, value);
+            endLine();
+        } catch (BufferOverflowException e) {
+            retry(start, series);
+            gauge(series, value);
+        }
+    }
+
+    @Override
+    public void distribution(String series, MetricType type, long count, double sum, double min, double max)
+            throws IOException {
+        final byte[] name = series.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+        final int start = batch.position();
+        try {
+            startLine(name);
+            batch.put(COUNT);
+            Encoding.putLong(batch, count);
+            batch.put(SUM);
+            Encoding.putDouble(batch, sum);
+            batch.put(MIN);
+            Encoding.putDouble(batch, min);
+            batch.put(MAX);
+            Encoding.putDouble(batch, max);
+            batch.put(MEAN);
+            Encoding.putDouble(batch, sum / count);
+            endLine();
+        } catch (BufferOverflowException e) {
+            retry(start, series);
+            distribution(series, type, count, sum, min, max);
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        send();
+    }
+
+    private void startLine(byte[] name) {
+        if (batch.position() > 0) {
+            batch.put((byte) '\n');
+        }
+        batch.put(name);
+    }
+
+    private void endLine() {
+        batch.put((byte) ' ');
+        Encoding.putLong(batch, timestamp);
+    }
+
+    /**
+     * Undo a line which did not fit, and send the batch before it to make room.
+     */
+    private void retry(int start, String series) throws IOException {
+        batch.position(start);
+        if (start == 0) {
+            throw new IOException(String.format("Line for series [%s] does not fit in a batch of %d bytes",
+                    series, batch.capacity()));
+        }
+        send();
+    }
+
+    private void send() throws IOException {
+        if (batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        try {
+            transport.write(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+    }
+}
@@ -0,0 +1,35 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Describes a destination for batches of InfluxDB line protocol, as written by
+ * an {@link InfluxLineProtocolStatsDClient}.
+ *
+ * <p>Built-in implementations are available from {@link LineProtocolTransports}.</p>
+ *
+ */
+public interface LineProtocolTransport {
+
+    /**
+     * @return the largest batch, in bytes, that {@link #write} accepts
+     */
+    int maxBatchBytes();
+
+    /**
+     * Deliver a batch of newline separated lines. The batch is only ever
+     * written from one thread at a time.
+     *
+     * @param batch
+     *     the lines to deliver, between the buffer's position and limit
+     * @throws IOException
+     *     if the batch could not be delivered
+     */
+    void write(ByteBuffer batch) throws IOException;
+
+    /**
+     * Release any resources held by this transport.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,149 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The built-in {@link LineProtocolTransport} implementations.
+ *
+ * <ul>
+ *   <li>{@link #udp} - one batch per datagram, for an InfluxDB UDP listener</li>
+ *   <li>{@link #http} - one batch per POST, for an InfluxDB {@code /write} endpoint</li>
+ * </ul>
+ *
+ */
+public final class LineProtocolTransports {
+
+    /** Keeps each datagram within a typical Ethernet MTU. */
+    public static final int DEFAULT_UDP_BATCH_BYTES = 1400;
+
+    /** Roughly 5000 lines, as recommended for InfluxDB writes. */
+    public static final int DEFAULT_HTTP_BATCH_BYTES = 512 * 1024;
+
+    private static final int HTTP_TIMEOUT_MS = 5000;
+
+    private LineProtocolTransports() { }
+
+    /**
+     * Send batches to an InfluxDB UDP listener, one datagram per batch.
+     *
+     * @throws StatsDClientException
+     *     if the channel could not be opened
+     */
+    public static LineProtocolTransport udp(String hostname, int port) throws StatsDClientException {
+        return udp(hostname, port, DEFAULT_UDP_BATCH_BYTES);
+    }
+
+    /**
+     * Send batches to an InfluxDB UDP listener, one datagram of at most
+     * {@code maxBatchBytes} per batch.
+     *
+     * @throws StatsDClientException
+     *     if the channel could not be opened
+     */
+    public static LineProtocolTransport udp(String hostname, int port, int maxBatchBytes) throws StatsDClientException {
+        try {
+            return new UdpTransport(DatagramChannel.open(), new InetSocketAddress(hostname, port), maxBatchBytes);
+        } catch (Exception e) {
+            throw new StatsDClientException("Failed to open UDP line protocol transport", e);
+        }
+    }
+
+    /**
+     * POST batches to an InfluxDB write endpoint, such as
+     * {@code http://localhost:8086/write?db=metrics}. Timestamps are written
+     * with nanosecond precision, which is the endpoint's default.
+     */
+    public static LineProtocolTransport http(URL writeUrl) {
+        return http(writeUrl, DEFAULT_HTTP_BATCH_BYTES);
+    }
+
+    /**
+     * POST batches of at most {@code maxBatchBytes} to an InfluxDB write endpoint.
+     */
+    public static LineProtocolTransport http(URL writeUrl, int maxBatchBytes) {
+        return new HttpTransport(writeUrl, maxBatchBytes);
+    }
+
+    private static final class UdpTransport implements LineProtocolTransport {
+        private final DatagramChannel channel;
+        private final InetSocketAddress address;
+        private final int maxBatchBytes;
+
+        UdpTransport(DatagramChannel channel, InetSocketAddress address, int maxBatchBytes) {
+            this.channel = channel;
+            this.address = address;
+            this.maxBatchBytes = maxBatchBytes;
+        }
+
+        @Override public int maxBatchBytes() {
+            return maxBatchBytes;
+        }
+
+        @Override public void write(ByteBuffer batch) throws IOException {
+            final int size = batch.remaining();
+            final int sent = channel.send(batch, address);
+            if (sent != size) {
+                throw new IOException(String.format("Only sent %d bytes out of %d bytes to [%s]", sent, size, address));
+            }
+        }
+
+        @Override public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class HttpTransport implements LineProtocolTransport {
+        private final URL writeUrl;
+        private final int maxBatchBytes;
+
+        HttpTransport(URL writeUrl, int maxBatchBytes) {
+            this.writeUrl = writeUrl;
+            this.maxBatchBytes = maxBatchBytes;
+        }
+
+        @Override public int maxBatchBytes() {
+            return maxBatchBytes;
+        }
+
+        @Override public void write(ByteBuffer batch) throws IOException {
+            final HttpURLConnection connection = (HttpURLConnection) writeUrl.openConnection();
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setConnectTimeout(HTTP_TIMEOUT_MS);
+                connection.setReadTimeout(HTTP_TIMEOUT_MS);
+                connection.setFixedLengthStreamingMode(batch.remaining());
+                connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+                final OutputStream out = connection.getOutputStream();
+                try {
+                    if (batch.hasArray()) {
+                        out.write(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+                    } else {
+                        final byte[] copy = new byte[batch.remaining()];
+                        batch.duplicate().get(copy);
+                        out.write(copy);
+                    }
+                } finally {
+                    out.close();
+                }
+                batch.position(batch.limit());
+                final int status = connection.getResponseCode();
+                if (status / 100 != 2) {
+                    throw new IOException(String.format("Write to [%s] failed with HTTP status %d", writeUrl, status));
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override public void close() {
+            /* connections are not kept open between batches */
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A many-producer, single-consumer ring of variable length records in a memory-mapped
+ * file, shared between a producing JVM and a forwarding process.
+ *
+ * <p>Producers claim space by compare-and-swap on the tail counter in the file header,
+ * mark the claim with its size, copy their record in and then publish it by writing
+ * its length with release semantics. The consumer reads records in order, zeroes the
+ * space they occupied and advances the head counter. Neither side makes a system call
+ * per record.</p>
+ *
+ * <p>Records which do not fit are dropped and counted in the header as overruns.
+ * When a producer process opens a ring which already exists, the position up to which
+ * its predecessor claimed space is recorded, and the consumer skips each claim below it
+ * which was never published, counting it as an overrun; records which were published
+ * are still read. A predecessor which died between claiming space and marking the
+ * claim leaves nothing to measure the claim by, and then everything up to the recorded
+ * position is skipped as a single overrun.</p>
+ *
+ * <p>Layout: a header of {@link #DATA_OFFSET} bytes, with each counter on its own
+ * cache line, followed by a power-of-two sized data region. Records are 8 byte
+ * aligned, prefixed by an {@code int} length; a negative length marks padding up to
+ * the end of the data region, and a length with {@link #CLAIMED} set marks a claim
+ * of that many bytes which is not yet published.</p>
+ */
+final class MappedRingBuffer {
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final int MAGIC = 0x53445242; // "SDRB"
+    private static final int VERSION = 2;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int EPOCH_OFFSET = 16;
+    private static final int ABANDONED_POSITION_OFFSET = 24;
+    private static final int OVERRUNS_OFFSET = 64;
+    private static final int TAIL_OFFSET = 128;
+    private static final int HEAD_OFFSET = 192;
+    static final int DATA_OFFSET = 256;
+
+    private static final int RECORD_HEADER = 4;
+    /* set in the length of a claimed record until it is published; records are far shorter */
+    private static final int CLAIMED = 0x40000000;
+    private static final int ALIGNMENT = 8;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+
+    private final ThreadLocal<ByteBuffer> views = new ThreadLocal<ByteBuffer>() {
+        @Override protected ByteBuffer initialValue() {
+            return buffer.duplicate();
+        }
+    };
+
+    /* consumer side state */
+    private ByteBuffer consumerView;
+
+    private MappedRingBuffer(MappedByteBuffer buffer, int capacity) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Open a ring for producing, creating it if necessary. If a ring of the same
+     * capacity already exists it is reused, and any claims its previous producer
+     * left unpublished are marked as abandoned.
+     *
+     * @param capacity
+     *     the size of the data region; rounded up to a power of two
+     */
+    static MappedRingBuffer openForProducer(File file, int capacity) throws IOException {
+        capacity = Integer.highestOneBit(Math.max(capacity, 4096) - 1) << 1;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            /* a ring which shrank is left at its old length, as a consumer may still map all of it */
+            final boolean reuse = raf.length() >= DATA_OFFSET + capacity;
+            final MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+            mapped.order(ByteOrder.nativeOrder());
+            final MappedRingBuffer ring = new MappedRingBuffer(mapped, capacity);
+            if (reuse && mapped.getInt(MAGIC_OFFSET) == MAGIC && mapped.getInt(VERSION_OFFSET) == VERSION
+                    && mapped.getInt(CAPACITY_OFFSET) == capacity) {
+                LONG.setRelease(mapped, ABANDONED_POSITION_OFFSET, (long) LONG.getVolatile(mapped, TAIL_OFFSET));
+                LONG.getAndAdd(mapped, EPOCH_OFFSET, 1L);
+            } else {
+                for (int i = 0; i < DATA_OFFSET + capacity; i += ALIGNMENT) {
+                    mapped.putLong(i, 0L);
+                }
+                mapped.putInt(VERSION_OFFSET, VERSION);
+                mapped.putInt(CAPACITY_OFFSET, capacity);
+                INT.setRelease(mapped, MAGIC_OFFSET, MAGIC);
+            }
+            return ring;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Open an existing ring for consuming.
+     *
+     * @throws IOException
+     *     if the file is not an initialised ring
+     */
+    static MappedRingBuffer openForConsumer(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long length = raf.length();
+            if (length <= DATA_OFFSET) {
+                throw new IOException(String.format("[%s] is not a statsd ring buffer", file));
+            }
+            final MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            mapped.order(ByteOrder.nativeOrder());
+            if ((int) INT.getVolatile(mapped, MAGIC_OFFSET) != MAGIC || mapped.getInt(VERSION_OFFSET) != VERSION
+                    || DATA_OFFSET + (long) mapped.getInt(CAPACITY_OFFSET) > length) {
+                throw new IOException(String.format("[%s] is not a statsd ring buffer", file));
+            }
+            final MappedRingBuffer ring = new MappedRingBuffer(mapped, mapped.getInt(CAPACITY_OFFSET));
+            ring.consumerView = mapped.duplicate();
+            return ring;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes in the data region
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return whether a producer has since set the ring up afresh with another capacity,
+     *     so that it must be opened again
+     */
+    boolean isResized() {
+        return (int) INT.getVolatile(buffer, CAPACITY_OFFSET) != capacity;
+    }
+
+    /**
+     * @return the largest record {@link #offer} can ever accept
+     */
+    int maxRecordLength() {
+        return capacity / 2 - RECORD_HEADER;
+    }
+
+    /**
+     * Copy the bytes between the position and limit of {@code record} into the ring.
+     * Safe to call from any number of threads.
+     *
+     * @return false if the ring was full, in which case the overrun is counted
+     */
+    boolean offer(ByteBuffer record) {
+        final int length = record.remaining();
+        if (length == 0) {
+            return true;
+        }
+        if (length > maxRecordLength()) {
+            LONG.getAndAdd(buffer, OVERRUNS_OFFSET, 1L);
+            return false;
+        }
+        final int recordLength = align(RECORD_HEADER + length);
+        long tail;
+        int offset;
+        int padding;
+        do {
+            tail = (long) LONG.getVolatile(buffer, TAIL_OFFSET);
+            final long head = (long) LONG.getVolatile(buffer, HEAD_OFFSET);
+            offset = (int) (tail & mask);
+            padding = offset + recordLength > capacity ? capacity - offset : 0;
+            if (tail + padding + recordLength - head > capacity) {
+                LONG.getAndAdd(buffer, OVERRUNS_OFFSET, 1L);
+                return false;
+            }
+        } while (!LONG.compareAndSet(buffer, TAIL_OFFSET, tail, tail + padding + recordLength));
+
+        if (padding > 0) {
+            INT.setRelease(buffer, DATA_OFFSET + offset, -padding);
+            offset = 0;
+        }
+        buffer.putInt(DATA_OFFSET + offset, CLAIMED | recordLength);
+        final ByteBuffer view = views.get();
+        view.clear();
+        view.position(DATA_OFFSET + offset + RECORD_HEADER);
+        view.put(record);
+        INT.setRelease(buffer, DATA_OFFSET + offset, length);
+        return true;
+    }
+
+    /**
+     * Move the next published record into {@code target}, unless it lacks the room.
+     * Must only be called from the single consuming thread.
+     *
+     * @return the length of the record moved, 0 if no record is available, or the
+     *     negated length of the next record if {@code target} has too little room
+     */
+    int poll(ByteBuffer target) {
+        while (true) {
+            final long head = (long) LONG.getVolatile(buffer, HEAD_OFFSET);
+            final int offset = (int) (head & mask);
+            final int length = (int) INT.getVolatile(buffer, DATA_OFFSET + offset);
+            if (length == 0) {
+                if (!isAbandoned(head)) {
+                    return 0;
+                }
+                skipUnmarked(head);
+                continue;
+            }
+            if (length < 0) {
+                release(head, offset, -length);
+                continue;
+            }
+            if ((length & CLAIMED) != 0) {
+                if (!isAbandoned(head)) {
+                    return 0;
+                }
+                LONG.getAndAdd(buffer, OVERRUNS_OFFSET, 1L);
+                release(head, offset, length & ~CLAIMED);
+                continue;
+            }
+            if (length > target.remaining()) {
+                return -length;
+            }
+            consumerView.limit(DATA_OFFSET + offset + RECORD_HEADER + length);
+            consumerView.position(DATA_OFFSET + offset + RECORD_HEADER);
+            target.put(consumerView);
+            release(head, offset, align(RECORD_HEADER + length));
+            return length;
+        }
+    }
+
+    /**
+     * Drop the next record without reading it, e.g. because it can never fit into a packet.
+     */
+    void skip() {
+        final long head = (long) LONG.getVolatile(buffer, HEAD_OFFSET);
+        final int offset = (int) (head & mask);
+        final int length = (int) INT.getVolatile(buffer, DATA_OFFSET + offset);
+        if (length < 0) {
+            release(head, offset, -length);
+        } else if (length > 0 && (length & CLAIMED) == 0) {
+            release(head, offset, align(RECORD_HEADER + length));
+        }
+    }
+
+    /**
+     * @return the number of records producers have dropped because the ring was full
+     */
+    long overruns() {
+        return (long) LONG.getVolatile(buffer, OVERRUNS_OFFSET);
+    }
+
+    /**
+     * @return the number of times a producer process has reopened this ring
+     */
+    long epoch() {
+        return (long) LONG.getVolatile(buffer, EPOCH_OFFSET);
+    }
+
+    /**
+     * @return whether the record at the given position was claimed by a producer
+     *     process which has since been replaced, and so will never be published
+     */
+    private boolean isAbandoned(long head) {
+        return head < (long) LONG.getVolatile(buffer, ABANDONED_POSITION_OFFSET);
+    }
+
+    /**
+     * Skip an abandoned claim which was never marked with its size, and with it
+     * everything up to the position its producer had claimed.
+     */
+    private void skipUnmarked(long head) {
+        final long abandoned = (long) LONG.getVolatile(buffer, ABANDONED_POSITION_OFFSET);
+        long position = head;
+        while (position < abandoned) {
+            final int offset = (int) (position & mask);
+            final int chunk = (int) Math.min(abandoned - position, capacity - offset);
+            zero(offset, chunk);
+            position += chunk;
+        }
+        LONG.getAndAdd(buffer, OVERRUNS_OFFSET, 1L);
+        LONG.setRelease(buffer, HEAD_OFFSET, abandoned);
+    }
+
+    private void release(long head, int offset, int recordLength) {
+        zero(offset, recordLength);
+        LONG.setRelease(buffer, HEAD_OFFSET, head + recordLength);
+    }
+
+    private void zero(int offset, int length) {
+        for (int i = RECORD_HEADER; i < length; i += RECORD_HEADER) {
+            buffer.putInt(DATA_OFFSET + offset + i, 0);
+        }
+        INT.setRelease(buffer, DATA_OFFSET + offset, 0);
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+    }
+}
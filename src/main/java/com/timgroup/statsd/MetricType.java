@@ -0,0 +1,28 @@
+package com.timgroup.statsd;
+
+/**
+ * The kinds of metric understood by a StatsD server, along with the type
+ * symbol used to mark each of them on the wire.
+ *
+ */
+public enum MetricType {
+    COUNTER("c"),
+    GAUGE("g"),
+    TIMER("ms"),
+    HISTOGRAM("h");
+
+    private final String symbol;
+    final byte[] symbolBytes;
+
+    MetricType(String symbol) {
+        this.symbol = symbol;
+        this.symbolBytes = symbol.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+    }
+
+    /**
+     * @return the type symbol written after the '|' separator, e.g. "c" or "ms"
+     */
+    public String symbol() {
+        return symbol;
+    }
+}
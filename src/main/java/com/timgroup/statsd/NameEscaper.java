@@ -0,0 +1,147 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Makes aspects and tags safe to write into a line, so that a stray comma, space,
+ * colon, pipe or newline cannot corrupt the line or split it in two.
+ *
+ * <p>StatsD has no way to escape a character, so characters which would corrupt a
+ * StatsD line are replaced with {@code '_'}. Line protocol escapes commas, spaces
+ * and equals signs with a backslash, and cannot carry line breaks at all, which are
+ * replaced likewise.</p>
+ *
+ * <p>A string is made safe in a single scan, which returns the string itself if
+ * nothing needs changing. Results are cached in a small direct-mapped table indexed
+ * by the hash code of the input, which {@link String} caches, so that escaping the
+ * names and tags which make up nearly all traffic costs a lookup and a comparison.
+ * The table never locks and never grows; a string which collides with another simply
+ * takes over its slot, and strings longer than {@link #MAX_CACHED_LENGTH} are not
+ * cached at all.</p>
+ */
+final class NameEscaper {
+
+    /** Aspects and prefixes of StatsD lines, in any format. */
+    static final NameEscaper STATSD_ASPECT = new NameEscaper(",:|=", "", "");
+    /**
+     * Tags of StatsD lines with InfluxDB style tags, which may be given as {@code key=value}
+     * or {@code key:value}; the first '=' or ':' separates key and value.
+     */
+    static final NameEscaper STATSD_TAG = new NameEscaper(",:|=", "", "=:");
+    /** Tags of DogStatsD lines, which may be given as {@code key=value} or {@code key:value}. */
+    static final NameEscaper DOGSTATSD_TAG = new NameEscaper(",|", "", "");
+    /** Hostnames, aggregation keys, source types and check names of DogStatsD events and service checks. */
+    static final NameEscaper DOGSTATSD_FIELD = new NameEscaper("|", "", "");
+    /** Measurements of line protocol. */
+    static final NameEscaper LINE_PROTOCOL_MEASUREMENT = new NameEscaper("", ", ", "");
+    /** {@code key=value} tags of line protocol; the first '=' separates key and value. */
+    static final NameEscaper LINE_PROTOCOL_TAG = new NameEscaper("", ", =", "=");
+
+    static final int MAX_CACHED_LENGTH = 256;
+
+    private static final int CACHE_SLOTS = 1024;
+    private static final byte KEEP = 0;
+    private static final byte REPLACE = 1;
+    private static final byte ESCAPE = 2;
+
+    private final byte[] actions = new byte[128];
+    private final String separators;
+    private final AtomicReferenceArray<Entry> cache = new AtomicReferenceArray<Entry>(CACHE_SLOTS);
+
+    /**
+     * Line breaks and other control characters are always replaced. A space is
+     * replaced unless it is escaped.
+     *
+     * @param replaced
+     *     characters to replace with '_'
+     * @param escaped
+     *     characters to escape with a backslash
+     * @param separators
+     *     characters the first of which is kept, as the separator of a key and value
+     */
+    private NameEscaper(String replaced, String escaped, String separators) {
+        for (char c = 0; c <= ' '; c++) {
+            actions[c] = REPLACE;
+        }
+        actions[0x7F] = REPLACE;
+        for (int i = 0; i < replaced.length(); i++) {
+            actions[replaced.charAt(i)] = REPLACE;
+        }
+        for (int i = 0; i < escaped.length(); i++) {
+            actions[escaped.charAt(i)] = ESCAPE;
+        }
+        this.separators = separators;
+    }
+
+    /**
+     * @return the given string made safe, which is the string itself if it was safe already
+     */
+    String escape(String s) {
+        if (s == null || s.length() > MAX_CACHED_LENGTH) {
+            return scan(s);
+        }
+        final int hash = s.hashCode();
+        final int slot = (hash ^ (hash >>> 16)) & (CACHE_SLOTS - 1);
+        final Entry entry = cache.get(slot);
+        if (entry != null && (entry.input == s || entry.input.equals(s))) {
+            return entry.output;
+        }
+        final String output = scan(s);
+        cache.set(slot, new Entry(s, output));
+        return output;
+    }
+
+    private String scan(String s) {
+        if (s == null) {
+            return null;
+        }
+        final int length = s.length();
+        boolean separated = separators.isEmpty();
+        int i = 0;
+        for (; i < length; i++) {
+            final char c = s.charAt(i);
+            if (!separated && separators.indexOf(c) >= 0) {
+                separated = true;
+            } else if (action(c) != KEEP) {
+                break;
+            }
+        }
+        if (i == length) {
+            return s;
+        }
+        final StringBuilder sb = new StringBuilder(length + 8).append(s, 0, i);
+        for (; i < length; i++) {
+            final char c = s.charAt(i);
+            if (!separated && separators.indexOf(c) >= 0) {
+                separated = true;
+                sb.append(c);
+                continue;
+            }
+            switch (action(c)) {
+                case REPLACE:
+                    sb.append('_');
+                    break;
+                case ESCAPE:
+                    sb.append('\\').append(c);
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private byte action(char c) {
+        return c < actions.length ? actions[c] : KEEP;
+    }
+
+    private static final class Entry {
+        final String input;
+        final String output;
+
+        Entry(String input, String output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.timgroup.statsd;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * A No-Op StatsDClient, which can be substituted in when metrics are not
  * required.
@@ -9,6 +11,7 @@ package com.timgroup.statsd;
  */
 public final class NoOpStatsDClient implements StatsDClient {
     @Override public void stop() { }
+    @Override public DrainResult stop(long timeout, TimeUnit unit) { return DrainResult.NOTHING_PENDING; }
     @Override public void count(String aspect, long delta, String... tags) { }
     @Override public void incrementCounter(String aspect, String... tags) { }
     @Override public void increment(String aspect, String... tags) { }
@@ -24,4 +27,11 @@ public final class NoOpStatsDClient implements StatsDClient {
     @Override public void histogram(String aspect, double value, String... tags) { }
     @Override public void recordHistogramValue(String aspect, long value, String... tags) { }
     @Override public void histogram(String aspect, long value, String... tags) { }
+    @Override public StatsDTimer timer(String aspect, String... tags) { return NO_OP_TIMER; }
+    @Override public void recordEvent(StatsDEvent event, String... tags) { }
+    @Override public void recordServiceCheckRun(StatsDServiceCheck check, String... tags) { }
+
+    private static final StatsDTimer NO_OP_TIMER = new StatsDTimer() {
+        @Override protected void recordMillis(double elapsedMillis) { }
+    };
 }
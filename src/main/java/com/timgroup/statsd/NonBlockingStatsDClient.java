@@ -1,20 +1,26 @@
 package com.timgroup.statsd;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
-import java.util.Locale;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A simple StatsD client implementation facilitating metrics recording.
@@ -32,12 +38,17 @@ import java.util.concurrent.TimeUnit;
  *   <li>{@link #recordExecutionTime} - records an execution time in milliseconds for the specified named operation</li>
  *   <li>{@link #recordHistogramValue} - records a value, to be tracked with average, maximum, and percentiles</li>
  *   <li>{@link #recordEvent} - records an event</li>
+ *   <li>{@link #recordServiceCheckRun} - records the outcome of a service check</li>
  * </ul>
  * From the perspective of the application, these methods are non-blocking, with the resulting
  * IO operations being carried out in a separate thread. Furthermore, these methods are guaranteed
  * not to throw an exception which may disrupt application execution.
  * </p>
  *
+ * <p>Metric lines are written in the InfluxDB tag format by default; other formats may be
+ * selected by passing one of the {@link LineEncoders} (or a custom {@link LineEncoder}) on
+ * construction.</p>
+ *
  * <p>As part of a clean system shutdown, the {@link #stop()} method should be invoked
  * on any StatsD clients.</p>
  *
@@ -47,56 +58,63 @@ import java.util.concurrent.TimeUnit;
 public final class NonBlockingStatsDClient implements StatsDClient {
 
     private static final int PACKET_SIZE_BYTES = 1400;
+    private static final long DEFAULT_DRAIN_TIMEOUT_SECONDS = 30;
+    private static final int MAX_SEND_RETRIES = 5;
+    private static final int SPILL_SEGMENT_BYTES = 1024 * 1024;
+    private static final long STUCK_SENDER_TIMEOUT_SECONDS = 1;
+    private static final long OUTAGE_PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long REPLAY_POLL_MILLIS = 10;
+    private static final long INITIAL_SEND_BACKOFF_NANOS = 10000L;
+    private static final long UNRESOLVED_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_CACHED_SERIES_KEYS = 10000;
 
-    private static final StatsDClientErrorHandler NO_OP_HANDLER = new StatsDClientErrorHandler() {
+    static final StatsDClientErrorHandler NO_OP_HANDLER = new StatsDClientErrorHandler() {
         @Override public void handle(Exception e) { /* No-op */ }
     };
 
-    /**
-     * Because NumberFormat is not thread-safe we cannot share instances across threads. Use a ThreadLocal to
-     * create one pre thread as this seems to offer a significant performance improvement over creating one per-thread:
-     * http://stackoverflow.com/a/1285297/2648
-     * https://github.com/indeedeng/java-dogstatsd-client/issues/4
-     */
-    private static final ThreadLocal<NumberFormat> NUMBER_FORMATTERS = new ThreadLocal<NumberFormat>() {
-        @Override
-        protected NumberFormat initialValue() {
+    private final String prefix;
+    private final DatagramChannel clientChannel;
+    private final String hostname;
+    private final Callable<InetSocketAddress> addressLookup;
+    private final int port;
+    private final long addressTtlNanos;
+    private final CountDownLatch resolved = new CountDownLatch(1);
+    private final ScheduledExecutorService resolver;
+    /* null until the hostname is first resolved, then swapped whole by the resolver */
+    private volatile InetSocketAddress address;
+    private final ErrorReporter handler;
+    private final String[] constantTags;
+    private final LineEncoder encoder;
+    private final boolean connected;
+    private final boolean nonBlocking;
+    private final SendBufferFullPolicy sendBufferFullPolicy;
+    private final boolean callerRuns;
+    private final long lingerNanos;
+    private final ScheduledExecutorService lingerExecutor;
+    private final ReentrantLock packetLock = new ReentrantLock();
+    private final SpillJournal spill;
+    private final int spillHighWater;
+    private final long replayIntervalNanos;
 
-            // Always create the formatter for the US locale in order to avoid this bug:
-            // https://github.com/indeedeng/java-dogstatsd-client/issues/3
-            NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
-            numberFormatter.setGroupingUsed(false);
-            numberFormatter.setMaximumFractionDigits(6);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory("StatsD-"));
 
-            // we need to specify a value for Double.NaN that is recognized by dogStatsD
-            if (numberFormatter instanceof DecimalFormat) { // better safe than a runtime error
-                final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
-                final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
-                symbols.setNaN("NaN");
-                decimalFormat.setDecimalFormatSymbols(symbols);
-            }
+    private final PriorityLanes<Message> lanes;
+    private final QueueConsumer consumer = new QueueConsumer();
 
-            return numberFormatter;
+    private final SeriesRegistry<SeriesKey> seriesKeys = new SeriesRegistry<SeriesKey>(MAX_CACHED_SERIES_KEYS, SeriesKey.RETENTION);
+    private final ScheduledFuture<?> seriesExpiry;
+    private final boolean samplingQueueDepth;
+    private final SeriesRegistry.Factory<SeriesKey> renderSeriesKey = new SeriesRegistry.Factory<SeriesKey>() {
+        @Override public SeriesKey create(String aspect, String[] tags) {
+            return encoder.seriesKey(prefix, aspect, constantTags, tags);
         }
     };
 
-    private final String prefix;
-    private final DatagramChannel clientChannel;
-    private final InetSocketAddress address;
-    private final StatsDClientErrorHandler handler;
-    private final String constantTagsRendered;
-
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-        final ThreadFactory delegate = Executors.defaultThreadFactory();
-        @Override public Thread newThread(Runnable r) {
-            Thread result = delegate.newThread(r);
-            result.setName("StatsD-" + result.getName());
-            result.setDaemon(true);
-            return result;
+    private final ThreadLocal<StatsDBatch> batches = new ThreadLocal<StatsDBatch>() {
+        @Override protected StatsDBatch initialValue() {
+            return new StatsDBatch(NonBlockingStatsDClient.this);
         }
-    });
-
-    private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+    };
 
     /**
      * Create a new StatsD client communicating with a StatsD instance on the
@@ -171,47 +189,213 @@ public final class NonBlockingStatsDClient implements StatsDClient {
      *     if the client could not be started
      */
     public NonBlockingStatsDClient(String prefix, String hostname, int port, String[] constantTags, StatsDClientErrorHandler errorHandler) throws StatsDClientException {
-        if(prefix != null && prefix.length() > 0) {
-          if(!prefix.endsWith( "." )){
-            this.prefix = String.format("%s.", prefix);
-          }
-          else{
-            this.prefix = prefix;
-          }
-        } else {
-            this.prefix = "";
-        }
-        this.handler = errorHandler;
+        this(prefix, hostname, port, constantTags, errorHandler, LineEncoders.INFLUX);
+    }
 
-        /* Empty list should be null for faster comparison */
-        if(constantTags != null && constantTags.length == 0) {
-            constantTags = null;
-        }
+    /**
+     * Create a new StatsD client communicating with a StatsD instance on the
+     * specified host and port. All messages send via this client will have
+     * their keys prefixed with the specified string, and will be written in
+     * the format of the specified encoder. The new client will attempt to
+     * open a connection to the StatsD server immediately upon instantiation,
+     * and may throw an exception if that a connection cannot be established.
+     * Once a client has been instantiated in this way, all exceptions thrown
+     * during subsequent usage are passed to the specified handler and then
+     * consumed, guaranteeing that failures in metrics will not affect normal
+     * code execution.
+     *
+     * @param prefix
+     *     the prefix to apply to keys sent via this client
+     * @param hostname
+     *     the host name of the targeted StatsD server
+     * @param port
+     *     the port of the targeted StatsD server
+     * @param constantTags
+     *     tags to be added to all content sent
+     * @param errorHandler
+     *     handler to use when an exception occurs during usage; may be null
+     * @param encoder
+     *     the wire format of metric lines, see {@link LineEncoders}
+     * @throws StatsDClientException
+     *     if the client could not be started
+     */
+    public NonBlockingStatsDClient(String prefix, String hostname, int port, String[] constantTags, StatsDClientErrorHandler errorHandler, LineEncoder encoder) throws StatsDClientException {
+        this(new NonBlockingStatsDClientBuilder()
+                .prefix(prefix)
+                .hostname(hostname)
+                .port(port)
+                .constantTags(constantTags)
+                .errorHandler(errorHandler)
+                .encoder(encoder));
+    }
 
-        if(constantTags != null) {
-            this.constantTagsRendered = tagString(constantTags, null);
-        } else {
-            this.constantTagsRendered = null;
-        }
+    /**
+     * Create a new StatsD client with the options collected by the given builder.
+     * See {@link NonBlockingStatsDClientBuilder#build()}.
+     */
+    NonBlockingStatsDClient(NonBlockingStatsDClientBuilder builder) throws StatsDClientException {
+        this.prefix = prefix(builder.prefix);
+        this.handler = new ErrorReporter(builder.errorHandler == null ? NO_OP_HANDLER : builder.errorHandler, builder.errorReportIntervalNanos);
+        this.encoder = builder.encoder;
+        this.constantTags = constantTags(builder.constantTags);
+        this.connected = builder.connected;
+        this.nonBlocking = builder.nonBlocking;
+        this.sendBufferFullPolicy = builder.sendBufferFullPolicy;
+        this.callerRuns = builder.callerRuns;
+        this.lingerNanos = builder.lingerNanos;
+        this.lingerExecutor = callerRuns && lingerNanos > 0 ? backgroundExecutor("StatsD-linger-") : null;
+        this.hostname = builder.hostname;
+        this.addressLookup = builder.addressLookup;
+        this.port = builder.port;
+        this.addressTtlNanos = builder.addressTtlNanos;
+        this.lanes = new PriorityLanes<Message>(builder.laneCapacities, builder.laneFullPolicies, builder.laneWeights);
+        this.resolver = builder.lazyInit || addressTtlNanos > 0 ? backgroundExecutor("StatsD-resolver-") : null;
+        this.seriesExpiry = builder.seriesIdleTimeoutNanos > 0 ? seriesKeys.scheduleExpiry(builder.seriesIdleTimeoutNanos, TimeUnit.NANOSECONDS) : null;
+
+        this.spillHighWater = builder.spillHighWater;
+        this.replayIntervalNanos = TimeUnit.SECONDS.toNanos(1) / builder.spillReplayRate;
 
         try {
+            this.spill = builder.spillDirectory == null ? null
+                    : new SpillJournal(builder.spillDirectory, (int) Math.min(SPILL_SEGMENT_BYTES, builder.spillMaxBytes), builder.spillMaxBytes);
             this.clientChannel = DatagramChannel.open();
-            this.address = new InetSocketAddress(hostname, port);
+            if (builder.socketSendBufferSize > 0) {
+                clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, builder.socketSendBufferSize);
+            }
+            clientChannel.configureBlocking(!nonBlocking);
+            if (!builder.lazyInit) {
+                this.address = lookupAddress();
+                if (connected) {
+                    clientChannel.connect(address);
+                    consumer.connectedAddress = address;
+                }
+                resolved.countDown();
+            }
         } catch (Exception e) {
             throw new StatsDClientException("Failed to start StatsD client", e);
         }
-        this.executor.submit(new QueueConsumer());
+        if (!callerRuns) {
+            this.executor.submit(consumer);
+        }
+        if (resolver != null) {
+            resolver.schedule(resolve, builder.lazyInit ? 0 : addressTtlNanos, TimeUnit.NANOSECONDS);
+        }
+        this.samplingQueueDepth = FlightRecorderEvents.addQueueDepthSampler(sampleQueueDepth);
     }
 
+    private final Runnable sampleQueueDepth = new Runnable() {
+        @Override public void run() {
+            final FlightRecorderEvents.QueueDepth event = new FlightRecorderEvents.QueueDepth();
+            event.target = hostname + ":" + port;
+            event.high = lanes.size(Priority.HIGH);
+            event.normal = lanes.size(Priority.NORMAL);
+            event.commit();
+        }
+    };
+
     /**
-     * Cleanly shut down this StatsD client. This method may throw an exception if
+     * Resolves the hostname off the recording threads, first to release metrics
+     * queued by a lazily initialised client, and then again every address TTL. A
+     * changed address is swapped in whole; the sender picks it up with its next packet.
+     */
+    private final Runnable resolve = new Runnable() {
+        @Override public void run() {
+            try {
+                final InetSocketAddress current = address;
+                final InetSocketAddress latest = lookupAddress();
+                if (latest.isUnresolved()) {
+                    throw new UnknownHostException(hostname);
+                }
+                if (current == null || !current.equals(latest)) {
+                    address = latest;
+                }
+                if (current == null) {
+                    resolved.countDown();
+                    if (callerRuns && packetLock.tryLock()) {
+                        runOnCaller(null);
+                    }
+                }
+            } catch (Exception e) {
+                handler.handle(e);
+            }
+            final long delay = null == address ? UNRESOLVED_RETRY_NANOS : addressTtlNanos;
+            if (delay > 0) {
+                try {
+                    resolver.schedule(this, delay, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    /* the client has been stopped */
+                }
+            }
+        }
+    };
+
+    private InetSocketAddress lookupAddress() throws Exception {
+        return addressLookup == null ? new InetSocketAddress(hostname, port) : addressLookup.call();
+    }
+
+    /**
+     * Cleanly shut down this StatsD client, spending up to thirty seconds sending
+     * the metrics which are still queued. This method may throw an exception if
      * the socket cannot be closed.
      */
     @Override
     public void stop() {
+        stop(DEFAULT_DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Cleanly shut down this StatsD client. Metrics which are still queued are
+     * packed into as few packets as possible and sent, until either the queue
+     * is empty or the timeout has passed; whatever remains is then abandoned.
+     *
+     * <p>The timeout bounds the whole of stopping, which waits for the background
+     * threads out of what is left of it. Only a sender stuck in a send when the
+     * timeout passes is given up to a second more to fail the send and stop.</p>
+     *
+     * @param timeout
+     *     the longest time to spend draining queued metrics
+     * @param unit
+     *     the unit of {@code timeout}
+     * @return how many queued metrics were flushed, and how many were abandoned
+     */
+    @Override
+    public DrainResult stop(long timeout, TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        consumer.drainDeadline = deadline;
+        try {
+            if (resolver != null) {
+                resolver.shutdown();
+                resolver.awaitTermination(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (seriesExpiry != null) {
+            seriesExpiry.cancel(false);
+        }
+        if (samplingQueueDepth) {
+            FlightRecorderEvents.removeSampler(sampleQueueDepth);
+        }
         try {
             executor.shutdown();
-            executor.awaitTermination(30, TimeUnit.SECONDS);
+            if (!executor.awaitTermination(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+                /* the sender is stuck in a send past the deadline: closing the channel fails
+                   the send, so that the sender has stopped before what remains is counted */
+                clientChannel.close();
+                executor.awaitTermination(STUCK_SENDER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            if (callerRuns) {
+                if (lingerExecutor != null) {
+                    lingerExecutor.shutdown();
+                    lingerExecutor.awaitTermination(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+                }
+                packetLock.lock();
+                try {
+                    consumer.drain();
+                } finally {
+                    packetLock.unlock();
+                }
+            }
         }
         catch (Exception e) {
             handler.handle(e);
@@ -225,11 +409,156 @@ public final class NonBlockingStatsDClient implements StatsDClient {
                     handler.handle(e);
                 }
             }
+            if (spill != null) {
+                closeSpill();
+            }
+            handler.flush();
+        }
+        long abandoned = 0;
+        if (executor.isTerminated()) {
+            packetLock.lock();
+            try {
+                Message message;
+                while (null != (message = lanes.poll())) {
+                    abandoned += message.metrics();
+                }
+            } finally {
+                packetLock.unlock();
+            }
+        } else {
+            /* the sender has still not stopped: leave the lanes to it and count what is queued */
+            abandoned = lanes.size();
+        }
+        return new DrainResult(consumer.drained, abandoned);
+    }
+
+    private static long remainingNanos(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    private void closeSpill() {
+        if (!executor.isTerminated()) {
+            /* the sender has still not stopped and may append; the lock goes with the process */
+            spill.force();
+            return;
+        }
+        try {
+            spill.close();
+        } catch (IOException e) {
+            handler.handle(e);
+        }
+    }
+
+    /**
+     * @return the number of bytes of off-heap memory held for packet buffers by this client
+     */
+    public long getOffHeapBytes() {
+        return consumer.sendBuffer.capacity() + (consumer.replayBuffer == null ? 0 : consumer.replayBuffer.capacity());
+    }
+
+    /**
+     * @return an estimate of the bytes of heap held for the series this client has recorded
+     */
+    public long getRetainedSeriesBytes() {
+        return seriesKeys.retainedBytes();
+    }
+
+    /**
+     * @return the number of packets dropped because the socket send buffer of a
+     *     non-blocking channel was full
+     */
+    public long getPacketsDropped() {
+        return consumer.packetsDropped;
+    }
+
+    /**
+     * @return the number of times a non-blocking channel retried a send because
+     *     the socket send buffer was full
+     */
+    public long getSendRetries() {
+        return consumer.sendRetries;
+    }
+
+    /**
+     * @return the number of packets written to the spill journal rather than sent
+     */
+    public long getPacketsSpilled() {
+        return consumer.packetsSpilled;
+    }
+
+    /**
+     * @return the number of spilled packets since sent to the server
+     */
+    public long getPacketsReplayed() {
+        return consumer.packetsReplayed;
+    }
+
+    /**
+     * @return the number of packets lost because the spill journal was full
+     */
+    public long getPacketsSpillDropped() {
+        return consumer.packetsSpillDropped;
+    }
+
+    /**
+     * @return the disk space taken by the spill journal
+     */
+    public long getSpillBytes() {
+        return consumer.spillBytes;
+    }
+
+    /**
+     * A single daemon thread for work scheduled off the recording threads. Shutting it
+     * down drops what is scheduled, but lets a task which is running finish: it may be
+     * sending, and interrupting it would close the channel.
+     */
+    static ScheduledExecutorService backgroundExecutor(String namePrefix) {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory(namePrefix));
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+    static ThreadFactory threadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            final ThreadFactory delegate = Executors.defaultThreadFactory();
+            @Override public Thread newThread(Runnable r) {
+                Thread result = delegate.newThread(r);
+                result.setName(namePrefix + result.getName());
+                result.setDaemon(true);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Normalise a key prefix, so that it is either empty or ends with a '.'
+     */
+    static String prefix(String prefix) {
+        if(prefix != null && prefix.length() > 0) {
+          if(!prefix.endsWith( "." )){
+            return String.format("%s.", prefix);
+          }
+          else{
+            return prefix;
+          }
+        } else {
+            return "";
         }
     }
 
     /**
-     * Generate a suffix conveying the given tag list to the client
+     * Normalise a list of constant tags, so that an empty list is null for faster comparison
+     */
+    static String[] constantTags(String[] constantTags) {
+        if(constantTags != null && constantTags.length == 0) {
+            return null;
+        }
+        return constantTags;
+    }
+
+    /**
+     * Generate a suffix conveying the given tag list to the client, with each tag
+     * made safe by {@link NameEscaper#STATSD_TAG}
      */
     static String tagString(final String[] tags, final String prefix) {
         StringBuilder sb;
@@ -247,7 +576,7 @@ public final class NonBlockingStatsDClient implements StatsDClient {
         }
 
         for(int n=tags.length - 1; n>=0; n--) {
-            sb.append(tags[n]);
+            sb.append(NameEscaper.STATSD_TAG.escape(tags[n]));
             if(n > 0) {
                 sb.append(",");
             }
@@ -255,13 +584,6 @@ public final class NonBlockingStatsDClient implements StatsDClient {
         return sb.toString();
     }
 
-    /**
-     * Generate a suffix conveying the given tag list to the client
-     */
-    String tagString(final String[] tags) {
-        return tagString(tags, constantTagsRendered);
-    }
-
     /**
      * Adjusts the specified counter by a given delta.
      *
@@ -276,7 +598,7 @@ public final class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void count(String aspect, long delta, String... tags) {
-        send(String.format("%s%s%s:%d|c", prefix, aspect, tagString(tags), delta ));
+        send(aspect, delta, MetricType.COUNTER, tags, Priority.NORMAL);
     }
 
     /**
@@ -339,9 +661,7 @@ public final class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordGaugeValue(String aspect, double value, String... tags) {
-        /* Intentionally using %s rather than %f here to avoid
-         * padding with extra 0s to represent precision */
-        send(String.format("%s%s%s:%s|g", prefix, aspect, tagString(tags), NUMBER_FORMATTERS.get().format(value)));
+        send(aspect, value, MetricType.GAUGE, tags, Priority.NORMAL);
     }
 
     /**
@@ -367,7 +687,7 @@ public final class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordGaugeValue(String aspect, long value, String... tags) {
-        send(String.format("%s%s%s:%d|g", prefix, aspect, tagString(tags), value));
+        send(aspect, value, MetricType.GAUGE, tags, Priority.NORMAL);
     }
 
     /**
@@ -392,7 +712,7 @@ public final class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
-        send(String.format("%s%s%s:%d|ms", prefix, aspect, tagString(tags), timeInMs));
+        send(aspect, timeInMs, MetricType.TIMER, tags, Priority.NORMAL);
     }
 
     /**
@@ -417,9 +737,7 @@ public final class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordHistogramValue(String aspect, double value, String... tags) {
-        /* Intentionally using %s rather than %f here to avoid
-         * padding with extra 0s to represent precision */
-        send(String.format("%s%s%s:%s|h", prefix, aspect, tagString(tags), NUMBER_FORMATTERS.get().format(value)));
+        send(aspect, value, MetricType.HISTOGRAM, tags, Priority.NORMAL);
     }
 
     /**
@@ -444,7 +762,7 @@ public final class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordHistogramValue(String aspect, long value, String... tags) {
-        send(String.format("%s%s%s:%d|h", prefix, aspect, tagString(tags), value));
+        send(aspect, value, MetricType.HISTOGRAM, tags, Priority.NORMAL);
     }
 
     /**
@@ -455,56 +773,770 @@ public final class NonBlockingStatsDClient implements StatsDClient {
         recordHistogramValue(aspect, value, tags);
     }
 
-    private void send(String message) {
-        queue.offer(message);
+    /**
+     * Binds a timer to the specified named operation, recording execution times
+     * in fractional milliseconds. The series is encoded once, here; stopping the
+     * timer only queues the elapsed time.
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param tags
+     *     array of tags to be added to the data
+     * @return a timer recording into the given series
+     */
+    @Override
+    public StatsDTimer timer(String aspect, String... tags) {
+        return timer(aspect, tags, Priority.NORMAL);
+    }
+
+    /**
+     * Records an event. The event is encoded straight away, truncated to fit in a
+     * packet, and queued in the high priority lane, to be packed alongside metrics.
+     *
+     * <p>This method is a DataDog extension, and may not work with other servers.</p>
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * @param event
+     *     the event to record
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    @Override
+    public void recordEvent(StatsDEvent event, String... tags) {
+        try {
+            send(new BatchMessage(EventEncoding.event(event, constantTags, tags, PACKET_SIZE_BYTES), 1), Priority.HIGH);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    /**
+     * Records the outcome of a run of a service check. The check is encoded straight
+     * away, truncated to fit in a packet, and queued in the high priority lane, to be
+     * packed alongside metrics.
+     *
+     * <p>This method is a DataDog extension, and may not work with other servers.</p>
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * @param check
+     *     the outcome to record
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    @Override
+    public void recordServiceCheckRun(StatsDServiceCheck check, String... tags) {
+        try {
+            send(new BatchMessage(EventEncoding.serviceCheck(check, constantTags, tags, PACKET_SIZE_BYTES), 1), Priority.HIGH);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    private StatsDTimer timer(String aspect, String[] tags, final Priority priority) {
+        final SeriesKey key = seriesKey(aspect, tags);
+        return new StatsDTimer() {
+            @Override protected void recordMillis(double elapsedMillis) {
+                send(new DoubleMessage(key, elapsedMillis, MetricType.TIMER), priority);
+            }
+
+            @Override protected void recordElapsedNanos(long elapsedNanos) {
+                send(new NanosMessage(key, elapsedNanos, MetricType.TIMER), priority);
+            }
+        };
+    }
+
+    /**
+     * Returns this thread's batch, emptied, to record several metrics into and then
+     * hand to the sender all at once with {@link StatsDBatch#send()}. The lines of
+     * a batch are packed into the same packet where they fit.
+     *
+     * <pre>
+     *   statsd.batch()
+     *       .count("requests", 1, "status=200")
+     *       .time("request.duration", 12)
+     *       .histogram("response.size", 5120)
+     *       .send();
+     * </pre>
+     *
+     * @return the batch of the calling thread, which may be reused after sending
+     */
+    public StatsDBatch batch() {
+        return batch(Priority.NORMAL);
+    }
+
+    /**
+     * Returns this thread's batch, emptied, to be sent in the lane of the given
+     * priority; see {@link #batch()}.
+     *
+     * @param priority
+     *     the lane in which the batch waits for the sender
+     * @return the batch of the calling thread, which may be reused after sending
+     */
+    public StatsDBatch batch(Priority priority) {
+        final StatsDBatch batch = batches.get();
+        batch.clear();
+        batch.priority = priority;
+        return batch;
+    }
+
+    /**
+     * Returns a view of this client whose metrics, and the timers bound through it,
+     * are queued in the lane of the given priority. The view shares the sender and
+     * socket of this client; stopping either stops both.
+     *
+     * <pre>
+     *   StatsDClient alerting = statsd.withPriority(Priority.HIGH);
+     *   alerting.incrementCounter("payments.failed");
+     * </pre>
+     *
+     * @param priority
+     *     the lane in which metrics recorded through the view wait for the sender
+     * @return a client recording with the given priority
+     */
+    public StatsDClient withPriority(Priority priority) {
+        return priority == Priority.NORMAL ? this : new PrioritisedClient(priority);
+    }
+
+    /**
+     * @return the number of metrics, counting a batch as one, dropped because
+     *     the lane of the given priority was full
+     */
+    public long getMetricsDropped(Priority priority) {
+        return lanes.dropped(priority);
+    }
+
+    SeriesKey seriesKey(String aspect, String[] tags) {
+        return seriesKeys.get(aspect, tags, renderSeriesKey);
+    }
+
+    LineEncoder encoder() {
+        return encoder;
+    }
+
+    StatsDClientErrorHandler handler() {
+        return handler;
+    }
+
+    /**
+     * Hand the given newline-separated lines to the sender as a single message.
+     */
+    void send(ByteBuffer lines, int metrics, Priority priority) {
+        final byte[] copy = new byte[lines.remaining()];
+        lines.get(copy);
+        send(new BatchMessage(copy, metrics), priority);
+    }
+
+    private void send(String aspect, long value, MetricType type, String[] tags, Priority priority) {
+        send(new LongMessage(seriesKey(aspect, tags), value, type), priority);
+    }
+
+    private void send(String aspect, double value, MetricType type, String[] tags, Priority priority) {
+        send(new DoubleMessage(seriesKey(aspect, tags), value, type), priority);
+    }
+
+    private void send(Message message, Priority priority) {
+        if (!callerRuns) {
+            lanes.offer(message, priority);
+            return;
+        }
+        if (null != address && packetLock.tryLock()) {
+            runOnCaller(message);
+            return;
+        }
+        /* whoever holds the packet buffer sends this before letting go, or we pick it up ourselves */
+        lanes.offer(message, priority);
+        if (null != address && packetLock.tryLock()) {
+            runOnCaller(null);
+        }
+    }
+
+    /**
+     * Write the given message, and anything handed off by contending callers, while
+     * holding the packet lock; then release it. Handed off messages which arrive
+     * after the last check under the lock are picked up by trying again.
+     */
+    private void runOnCaller(Message message) {
+        try {
+            consumer.processOnCaller(message);
+        } finally {
+            packetLock.unlock();
+        }
+        while (!lanes.isEmpty() && packetLock.tryLock()) {
+            try {
+                consumer.processOnCaller(null);
+            } finally {
+                packetLock.unlock();
+            }
+        }
     }
 
     public static final Charset MESSAGE_CHARSET = Charset.forName("UTF-8");
 
+    /**
+     * A view of the client which queues everything it records in the lane of one priority.
+     */
+    private final class PrioritisedClient implements StatsDClient {
+        private final Priority priority;
+
+        PrioritisedClient(Priority priority) {
+            this.priority = priority;
+        }
+
+        @Override public void stop() {
+            NonBlockingStatsDClient.this.stop();
+        }
+
+        @Override public DrainResult stop(long timeout, TimeUnit unit) {
+            return NonBlockingStatsDClient.this.stop(timeout, unit);
+        }
+
+        @Override public void count(String aspect, long delta, String... tags) {
+            send(aspect, delta, MetricType.COUNTER, tags, priority);
+        }
+
+        @Override public void incrementCounter(String aspect, String... tags) {
+            count(aspect, 1, tags);
+        }
+
+        @Override public void increment(String aspect, String... tags) {
+            incrementCounter(aspect, tags);
+        }
+
+        @Override public void decrementCounter(String aspect, String... tags) {
+            count(aspect, -1, tags);
+        }
+
+        @Override public void decrement(String aspect, String... tags) {
+            decrementCounter(aspect, tags);
+        }
+
+        @Override public void recordGaugeValue(String aspect, double value, String... tags) {
+            send(aspect, value, MetricType.GAUGE, tags, priority);
+        }
+
+        @Override public void gauge(String aspect, double value, String... tags) {
+            recordGaugeValue(aspect, value, tags);
+        }
+
+        @Override public void recordGaugeValue(String aspect, long value, String... tags) {
+            send(aspect, value, MetricType.GAUGE, tags, priority);
+        }
+
+        @Override public void gauge(String aspect, long value, String... tags) {
+            recordGaugeValue(aspect, value, tags);
+        }
+
+        @Override public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
+            send(aspect, timeInMs, MetricType.TIMER, tags, priority);
+        }
+
+        @Override public void time(String aspect, long value, String... tags) {
+            recordExecutionTime(aspect, value, tags);
+        }
+
+        @Override public void recordHistogramValue(String aspect, double value, String... tags) {
+            send(aspect, value, MetricType.HISTOGRAM, tags, priority);
+        }
+
+        @Override public void histogram(String aspect, double value, String... tags) {
+            recordHistogramValue(aspect, value, tags);
+        }
+
+        @Override public void recordHistogramValue(String aspect, long value, String... tags) {
+            send(aspect, value, MetricType.HISTOGRAM, tags, priority);
+        }
+
+        @Override public void histogram(String aspect, long value, String... tags) {
+            recordHistogramValue(aspect, value, tags);
+        }
+
+        @Override public StatsDTimer timer(String aspect, String... tags) {
+            return NonBlockingStatsDClient.this.timer(aspect, tags, priority);
+        }
+
+        @Override public void recordEvent(StatsDEvent event, String... tags) {
+            NonBlockingStatsDClient.this.recordEvent(event, tags);
+        }
+
+        @Override public void recordServiceCheckRun(StatsDServiceCheck check, String... tags) {
+            NonBlockingStatsDClient.this.recordServiceCheckRun(check, tags);
+        }
+    }
+
     private class QueueConsumer implements Runnable {
-        private final ByteBuffer sendBuffer = ByteBuffer.allocate(PACKET_SIZE_BYTES);
+        /* a direct buffer spares the JDK copying each packet into a temporary one of its own before sending */
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(PACKET_SIZE_BYTES);
+
+        /* set by stop() before the executor is shut down */
+        volatile long drainDeadline;
+        volatile long drained;
+
+        volatile long packetsDropped;
+        volatile long sendRetries;
+        volatile long packetsSpilled;
+        volatile long packetsSpillDropped;
+        volatile long packetsReplayed;
+        volatile long spillBytes;
+
+        /* spilling only, guarded by the sender: whether the last send failed, when
+           to try sending again, and when the next spilled packet may be replayed */
+        private boolean outage;
+        private long probeAt;
+        private long replayAt;
+        private ByteBuffer replayBuffer;
+
+        /* the number of lines in the packet being filled; guarded by the sender */
+        private int packetLines;
+
+        /* the address the channel is connected to, if connected; guarded by the sender */
+        private InetSocketAddress connectedAddress;
+
+        /* caller-runs mode only, guarded by the packet lock */
+        private boolean lingerScheduled;
+        private final Runnable lingerFlush = new Runnable() {
+            @Override public void run() {
+                packetLock.lock();
+                try {
+                    lingerScheduled = false;
+                    appendHandedOff();
+                    if(sendBuffer.position() > 0) {
+                        sendPacket();
+                    }
+                } catch (Exception e) {
+                    handler.handle(e);
+                } finally {
+                    packetLock.unlock();
+                }
+            }
+        };
 
         @Override public void run() {
             while(!executor.isShutdown()) {
                 try {
-                    String message = queue.poll(1, TimeUnit.SECONDS);
+                    if(!resolved.await(1, TimeUnit.SECONDS)) {
+                        continue;
+                    }
+                    final boolean replaying = spill != null && !spill.isEmpty();
+                    Message message = lanes.poll(replaying ? REPLAY_POLL_MILLIS : 1000, TimeUnit.MILLISECONDS);
                     if(null != message) {
-                        byte[] data = message.getBytes(MESSAGE_CHARSET);
-                        if(sendBuffer.remaining() < (data.length + 1)) {
-                            blockingSend();
-                        }
-                        if(sendBuffer.position() > 0) {
-                            sendBuffer.put( (byte) '\n');
-                        }
-                        sendBuffer.put(data);
-                        if(null == queue.peek()) {
-                            blockingSend();
+                        process(message);
+                    } else {
+                        if(replaying) {
+                            replay();
                         }
+                        handler.reportIfDue();
                     }
                 } catch (Exception e) {
                     handler.handle(e);
                 }
             }
+            drain();
         }
 
-        private void blockingSend() throws IOException {
+        /**
+         * Send whatever is still queued, packing packets fully, until the queue is
+         * empty or the deadline passes.
+         */
+        void drain() {
+            if(null == address) {
+                /* never resolved: all that is queued is abandoned */
+                return;
+            }
+            Message message;
+            while(System.nanoTime() - drainDeadline < 0 && null != (message = lanes.poll())) {
+                try {
+                    process(message);
+                    drained += message.metrics();
+                } catch (Exception e) {
+                    handler.handle(e);
+                }
+            }
+            try {
+                if(sendBuffer.position() > 0) {
+                    sendPacket();
+                }
+            } catch (Exception e) {
+                handler.handle(e);
+            }
+        }
+
+        private void process(Message message) throws IOException {
+            append(message);
+            if(lanes.isEmpty()) {
+                sendPacket();
+            }
+        }
+
+        /**
+         * Caller-runs counterpart of {@link #run()}, called with the packet lock held:
+         * append the caller's message and any handed off ones, then either send the
+         * packet or leave it to linger for more.
+         */
+        void processOnCaller(Message message) {
+            try {
+                if(null != message) {
+                    append(message);
+                }
+                appendHandedOff();
+                if(sendBuffer.position() > 0) {
+                    if(lingerExecutor == null) {
+                        sendPacket();
+                    } else if(!lingerScheduled) {
+                        lingerScheduled = true;
+                        lingerExecutor.schedule(lingerFlush, lingerNanos, TimeUnit.NANOSECONDS);
+                    }
+                }
+            } catch (Exception e) {
+                handler.handle(e);
+            }
+        }
+
+        private void appendHandedOff() throws IOException {
+            Message message;
+            while(null != (message = lanes.poll())) {
+                append(message);
+            }
+        }
+
+        private void append(Message message) throws IOException {
+            if(message instanceof BatchMessage) {
+                appendBatch(((BatchMessage) message).lines, message.metrics());
+                return;
+            }
+            if(sendBuffer.remaining() < (message.estimateLength(encoder) + 1)) {
+                sendPacket();
+            }
+            write(message);
+        }
+
+        /**
+         * Append a batch of lines as a unit if it fits in what remains of the packet,
+         * or in a packet of its own; otherwise split it at line boundaries.
+         */
+        private void appendBatch(byte[] lines, int count) throws IOException {
+            if(sendBuffer.position() > 0 && sendBuffer.remaining() < lines.length + 1) {
+                sendPacket();
+            }
+            if(sendBuffer.remaining() >= lines.length + (sendBuffer.position() > 0 ? 1 : 0)) {
+                if(sendBuffer.position() > 0) {
+                    sendBuffer.put( (byte) '\n');
+                }
+                sendBuffer.put(lines);
+                packetLines += count;
+                return;
+            }
+            int start = 0;
+            while(start < lines.length) {
+                int end = start;
+                while(end < lines.length && lines[end] != '\n') {
+                    end++;
+                }
+                if(sendBuffer.remaining() < end - start + (sendBuffer.position() > 0 ? 1 : 0)) {
+                    if(sendBuffer.position() > 0) {
+                        sendPacket();
+                    }
+                    if(sendBuffer.remaining() < end - start) {
+                        throw new BufferOverflowException();
+                    }
+                }
+                if(sendBuffer.position() > 0) {
+                    sendBuffer.put( (byte) '\n');
+                }
+                sendBuffer.put(lines, start, end - start);
+                packetLines++;
+                start = end + 1;
+            }
+        }
+
+        private void write(Message message) throws IOException {
+            final int start = sendBuffer.position();
+            try {
+                if(start > 0) {
+                    sendBuffer.put( (byte) '\n');
+                }
+                message.writeTo(sendBuffer, encoder);
+                packetLines++;
+            } catch (BufferOverflowException e) {
+                sendBuffer.position(start);
+                if(start == 0) {
+                    throw e;
+                }
+                sendPacket();
+                write(message);
+            }
+        }
+
+        private void sendPacket() throws IOException {
+            final FlightRecorderEvents.SenderFlush flush = FlightRecorderEvents.AVAILABLE ? new FlightRecorderEvents.SenderFlush() : null;
+            if (flush != null) {
+                flush.begin();
+            }
             int sizeOfBuffer = sendBuffer.position();
+            final int lines = packetLines;
+            final InetSocketAddress target = address;
             sendBuffer.flip();
-            int sentBytes = clientChannel.send(sendBuffer, address);
-            sendBuffer.limit(sendBuffer.capacity());
-            sendBuffer.rewind();
-
-            if (sizeOfBuffer != sentBytes) {
-                handler.handle(
-                        new IOException(
-                            String.format(
-                                "Could not send stats [%s] to host [%s:%d]. Only sent %d bytes out of %d bytes",
-                                sendBuffer.toString(),
-                                address.getHostName(),
-                                address.getPort(),
-                                sentBytes,
-                                sizeOfBuffer)));
+            int sentBytes;
+            try {
+                if (spill != null && shouldSpill()) {
+                    spill(sendBuffer);
+                    return;
+                }
+                sentBytes = send(sendBuffer, target);
+                if (spill != null) {
+                    outage = false;
+                }
+            } catch (IOException e) {
+                recordSendError(target, e);
+                if (spill == null) {
+                    throw e;
+                }
+                sendBuffer.position(0);
+                spill(sendBuffer);
+                startOutage(e);
+                return;
+            } finally {
+                sendBuffer.limit(sendBuffer.capacity());
+                sendBuffer.rewind();
+                packetLines = 0;
+            }
+
+            if (sentBytes == 0 && sizeOfBuffer > 0 && nonBlocking) {
+                packetsDropped++;
+            } else if (sizeOfBuffer != sentBytes) {
+                handler.shortSend(target, sentBytes, sizeOfBuffer);
+                recordSendError(target, "short send");
+            }
+            if (flush != null) {
+                flush.end();
+                if (flush.shouldCommit()) {
+                    flush.bytes = sizeOfBuffer;
+                    flush.lines = lines;
+                    flush.commit();
+                }
+            }
+            if (spill != null && !spill.isEmpty()) {
+                replay();
+            }
+        }
+
+        /**
+         * @return whether to spill the next packet rather than send it: while the server
+         *     is unreachable and not yet due to be tried again, or while more metrics are
+         *     queued than the high-water mark
+         */
+        private boolean shouldSpill() {
+            if (outage && System.nanoTime() - probeAt < 0) {
+                return true;
+            }
+            return lanes.size(Priority.HIGH) + lanes.size(Priority.NORMAL) > spillHighWater;
+        }
+
+        private void startOutage(IOException e) {
+            outage = true;
+            probeAt = System.nanoTime() + OUTAGE_PROBE_INTERVAL_NANOS;
+            handler.handle(e);
+        }
+
+        private void spill(ByteBuffer packet) {
+            try {
+                if (spill.append(packet)) {
+                    packetsSpilled++;
+                } else {
+                    packetsSpillDropped++;
+                }
+            } catch (IOException e) {
+                packetsSpillDropped++;
+                handler.handle(e);
+            }
+            spillBytes = spill.bytes();
+        }
+
+        /**
+         * Send spilled packets, oldest first, as fast as the replay rate allows. Stops
+         * at the first packet which cannot be sent, leaving it to be tried again later.
+         */
+        private void replay() {
+            if (outage && System.nanoTime() - probeAt < 0) {
+                return;
+            }
+            if (replayBuffer == null) {
+                replayBuffer = ByteBuffer.allocateDirect(PACKET_SIZE_BYTES);
+            }
+            final InetSocketAddress target = address;
+            final long now = System.nanoTime();
+            /* allow at most a second's worth of packets to accumulate while idle */
+            if (now - replayAt > TimeUnit.SECONDS.toNanos(1)) {
+                replayAt = now - TimeUnit.SECONDS.toNanos(1);
+            }
+            while (replayAt - now <= 0) {
+                replayBuffer.clear();
+                if (!spill.peek(replayBuffer)) {
+                    break;
+                }
+                replayBuffer.flip();
+                try {
+                    if (send(replayBuffer, target) == 0) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    recordSendError(target, e);
+                    startOutage(e);
+                    break;
+                }
+                outage = false;
+                spill.advance();
+                packetsReplayed++;
+                replayAt += replayIntervalNanos;
             }
+            spillBytes = spill.bytes();
+        }
+
+        /**
+         * @param error
+         *     the exception, or a description of the failure, rendered only if the event is recorded
+         */
+        private void recordSendError(InetSocketAddress target, Object error) {
+            if (!FlightRecorderEvents.AVAILABLE) {
+                return;
+            }
+            final FlightRecorderEvents.SocketSendError event = new FlightRecorderEvents.SocketSendError();
+            if (event.shouldCommit()) {
+                event.target = String.valueOf(target);
+                event.error = error.toString();
+                event.commit();
+            }
+        }
+
+        /**
+         * @return the number of bytes sent, which for a non-blocking channel is 0 if
+         *     the socket send buffer stayed full
+         */
+        private int send(ByteBuffer packet, InetSocketAddress target) throws IOException {
+            final FlightRecorderEvents.SocketSend event = FlightRecorderEvents.AVAILABLE ? new FlightRecorderEvents.SocketSend() : null;
+            if (event != null) {
+                event.begin();
+            }
+            final long retriesBefore = sendRetries;
+            if (connected && !target.equals(connectedAddress)) {
+                if (clientChannel.isConnected()) {
+                    clientChannel.disconnect();
+                }
+                clientChannel.connect(target);
+                connectedAddress = target;
+            }
+            int sentBytes = connected ? clientChannel.write(packet) : clientChannel.send(packet, target);
+            if (sentBytes == 0 && nonBlocking && sendBufferFullPolicy == SendBufferFullPolicy.RETRY) {
+                long backoff = INITIAL_SEND_BACKOFF_NANOS;
+                for (int attempt = 0; attempt < MAX_SEND_RETRIES && sentBytes == 0; attempt++) {
+                    LockSupport.parkNanos(backoff);
+                    backoff *= 2;
+                    sendRetries++;
+                    sentBytes = connected ? clientChannel.write(packet) : clientChannel.send(packet, target);
+                }
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.bytes = sentBytes;
+                    event.retries = (int) (sendRetries - retriesBefore);
+                    event.commit();
+                }
+            }
+            return sentBytes;
+        }
+    }
+
+    private abstract static class Message {
+        /**
+         * @return the number of metrics carried by this message
+         */
+        int metrics() {
+            return 1;
+        }
+
+        abstract int estimateLength(LineEncoder encoder);
+
+        abstract void writeTo(ByteBuffer buffer, LineEncoder encoder);
+    }
+
+    private abstract static class MetricMessage extends Message {
+        final SeriesKey key;
+        final MetricType type;
+
+        MetricMessage(SeriesKey key, MetricType type) {
+            this.key = key;
+            this.type = type;
+        }
+
+        @Override int estimateLength(LineEncoder encoder) {
+            return encoder.estimateLength(key);
+        }
+    }
+
+    private static final class LongMessage extends MetricMessage {
+        private final long value;
+
+        LongMessage(SeriesKey key, long value, MetricType type) {
+            super(key, type);
+            this.value = value;
+        }
+
+        @Override void writeTo(ByteBuffer buffer, LineEncoder encoder) {
+            encoder.encode(buffer, key, value, type);
+        }
+    }
+
+    private static final class DoubleMessage extends MetricMessage {
+        private final double value;
+
+        DoubleMessage(SeriesKey key, double value, MetricType type) {
+            super(key, type);
+            this.value = value;
+        }
+
+        @Override void writeTo(ByteBuffer buffer, LineEncoder encoder) {
+            encoder.encode(buffer, key, value, type);
+        }
+    }
+
+    private static final class NanosMessage extends MetricMessage {
+        private final long elapsedNanos;
+
+        NanosMessage(SeriesKey key, long elapsedNanos, MetricType type) {
+            super(key, type);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override void writeTo(ByteBuffer buffer, LineEncoder encoder) {
+            encoder.encodeNanos(buffer, key, elapsedNanos, type);
+        }
+    }
+
+    /**
+     * Lines encoded ahead of time, by a {@link StatsDBatch} or as an event, separated
+     * by newlines and handed to the sender as one message.
+     */
+    private static final class BatchMessage extends Message {
+        final byte[] lines;
+        private final int metrics;
+
+        BatchMessage(byte[] lines, int metrics) {
+            this.lines = lines;
+            this.metrics = metrics;
+        }
+
+        @Override int metrics() {
+            return metrics;
+        }
+
+        @Override int estimateLength(LineEncoder encoder) {
+            return lines.length;
+        }
+
+        @Override void writeTo(ByteBuffer buffer, LineEncoder encoder) {
+            buffer.put(lines);
         }
     }
 }
@@ -0,0 +1,335 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the options of a {@link NonBlockingStatsDClient}. Only the hostname
+ * and port are required; every other option has the same default as the
+ * client's constructors.
+ *
+ * <pre>
+ *   StatsDClient statsd = new NonBlockingStatsDClientBuilder()
+ *       .prefix("my.prefix")
+ *       .hostname("statsd-host")
+ *       .port(8125)
+ *       .constantTags("tag=value")
+ *       .connected(true)
+ *       .build();
+ * </pre>
+ *
+ */
+public final class NonBlockingStatsDClientBuilder {
+
+    String prefix;
+    String hostname;
+    int port;
+    String[] constantTags;
+    StatsDClientErrorHandler errorHandler;
+    LineEncoder encoder = LineEncoders.INFLUX;
+    boolean connected;
+    int socketSendBufferSize;
+    boolean nonBlocking;
+    SendBufferFullPolicy sendBufferFullPolicy = SendBufferFullPolicy.RETRY;
+    boolean callerRuns;
+    long lingerNanos;
+    boolean lazyInit;
+    Callable<InetSocketAddress> addressLookup;
+    long addressTtlNanos;
+    long errorReportIntervalNanos;
+    long seriesIdleTimeoutNanos = TimeUnit.MINUTES.toNanos(10);
+    final int[] laneCapacities = { Integer.MAX_VALUE, Integer.MAX_VALUE };
+    final LaneFullPolicy[] laneFullPolicies = { LaneFullPolicy.DROP_NEWEST, LaneFullPolicy.DROP_NEWEST };
+    final int[] laneWeights = { 4, 1 };
+    File spillDirectory;
+    long spillMaxBytes;
+    int spillHighWater = Integer.MAX_VALUE;
+    int spillReplayRate = 1000;
+
+    /**
+     * @param prefix
+     *     the prefix to apply to keys sent via the client
+     */
+    public NonBlockingStatsDClientBuilder prefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    /**
+     * @param hostname
+     *     the host name of the targeted StatsD server
+     */
+    public NonBlockingStatsDClientBuilder hostname(String hostname) {
+        this.hostname = hostname;
+        return this;
+    }
+
+    /**
+     * @param port
+     *     the port of the targeted StatsD server
+     */
+    public NonBlockingStatsDClientBuilder port(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * @param constantTags
+     *     tags to be added to all content sent
+     */
+    public NonBlockingStatsDClientBuilder constantTags(String... constantTags) {
+        this.constantTags = constantTags;
+        return this;
+    }
+
+    /**
+     * @param errorHandler
+     *     handler to use when an exception occurs during usage
+     */
+    public NonBlockingStatsDClientBuilder errorHandler(StatsDClientErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+        return this;
+    }
+
+    /**
+     * @param encoder
+     *     the wire format of metric lines, see {@link LineEncoders}
+     */
+    public NonBlockingStatsDClientBuilder encoder(LineEncoder encoder) {
+        this.encoder = encoder;
+        return this;
+    }
+
+    /**
+     * @param connected
+     *     whether to connect the datagram channel to the server, sparing the
+     *     destination checks on every send; defaults to false
+     */
+    public NonBlockingStatsDClientBuilder connected(boolean connected) {
+        this.connected = connected;
+        return this;
+    }
+
+    /**
+     * @param socketSendBufferSize
+     *     the {@code SO_SNDBUF} to request for the channel, or 0 to keep the
+     *     system default
+     */
+    public NonBlockingStatsDClientBuilder socketSendBufferSize(int socketSendBufferSize) {
+        this.socketSendBufferSize = socketSendBufferSize;
+        return this;
+    }
+
+    /**
+     * @param nonBlocking
+     *     whether to put the channel in non-blocking mode, so that a full send
+     *     buffer is handled by the {@link #sendBufferFullPolicy} instead of
+     *     stalling the sender thread; defaults to false
+     */
+    public NonBlockingStatsDClientBuilder nonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+        return this;
+    }
+
+    /**
+     * @param sendBufferFullPolicy
+     *     what a non-blocking channel does with a packet when the send buffer
+     *     is full; defaults to {@link SendBufferFullPolicy#RETRY}
+     */
+    public NonBlockingStatsDClientBuilder sendBufferFullPolicy(SendBufferFullPolicy sendBufferFullPolicy) {
+        this.sendBufferFullPolicy = sendBufferFullPolicy;
+        return this;
+    }
+
+    /**
+     * @param callerRuns
+     *     whether recording threads encode and send metrics themselves rather than
+     *     handing them to a sender thread. A thread which finds the packet buffer in
+     *     use hands its metric to the thread holding it instead. No thread is started
+     *     unless a {@link #linger} is set. Suited to clients recording a few metrics a
+     *     second, and safe to use from virtual threads; cannot be combined with
+     *     {@link #spill}, which needs a sender thread; defaults to false
+     */
+    public NonBlockingStatsDClientBuilder callerRuns(boolean callerRuns) {
+        this.callerRuns = callerRuns;
+        return this;
+    }
+
+    /**
+     * @param linger
+     *     in caller-runs mode, how long a partly filled packet may wait for more
+     *     metrics before a timer thread sends it; by default packets are sent by
+     *     the recording thread straight away
+     * @param unit
+     *     the unit of {@code linger}
+     */
+    public NonBlockingStatsDClientBuilder linger(long linger, TimeUnit unit) {
+        this.lingerNanos = unit.toNanos(linger);
+        return this;
+    }
+
+    /**
+     * @param lazyInit
+     *     whether to resolve the hostname on a background thread rather than in
+     *     {@link #build()}. Metrics recorded before the first successful resolution
+     *     are queued, and resolution is retried every second until it succeeds;
+     *     defaults to false
+     */
+    public NonBlockingStatsDClientBuilder lazyInit(boolean lazyInit) {
+        this.lazyInit = lazyInit;
+        return this;
+    }
+
+    /**
+     * @param addressTtl
+     *     how often to resolve the hostname again on a background thread, so that
+     *     a server whose address changes is followed; by default the hostname is
+     *     resolved only once
+     * @param unit
+     *     the unit of {@code addressTtl}
+     */
+    public NonBlockingStatsDClientBuilder addressTtl(long addressTtl, TimeUnit unit) {
+        this.addressTtlNanos = unit.toNanos(addressTtl);
+        return this;
+    }
+
+    /**
+     * @param errorReportInterval
+     *     how often at most to call the {@link #errorHandler}. Failures are counted
+     *     by category in between, and passed to the handler as one
+     *     {@link StatsDClientErrorSummary} per interval, so that a network incident
+     *     does not turn into a storm of exceptions. By default every failure is
+     *     passed to the handler as it occurs
+     * @param unit
+     *     the unit of {@code errorReportInterval}
+     */
+    public NonBlockingStatsDClientBuilder errorReportInterval(long errorReportInterval, TimeUnit unit) {
+        this.errorReportIntervalNanos = unit.toNanos(errorReportInterval);
+        return this;
+    }
+
+    /**
+     * @param seriesIdleTimeout
+     *     how long a series may go unrecorded before the client forgets the key it
+     *     rendered for it, so that series which come and go, such as those tagged
+     *     with a deployment version, do not hold memory forever; 0 keeps every key.
+     *     Defaults to 10 minutes
+     * @param unit
+     *     the unit of {@code seriesIdleTimeout}
+     */
+    public NonBlockingStatsDClientBuilder seriesIdleTimeout(long seriesIdleTimeout, TimeUnit unit) {
+        this.seriesIdleTimeoutNanos = unit.toNanos(seriesIdleTimeout);
+        return this;
+    }
+
+    /**
+     * Bounds the lane in which metrics of the given priority wait for the sender.
+     * By default both lanes are unbounded.
+     *
+     * @param priority
+     *     the priority whose lane to bound
+     * @param capacity
+     *     the most metrics, or batches, the lane holds
+     * @param policy
+     *     what to drop when the lane is full
+     */
+    public NonBlockingStatsDClientBuilder lane(Priority priority, int capacity, LaneFullPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Lane capacity must be positive");
+        }
+        this.laneCapacities[priority.ordinal()] = capacity;
+        this.laneFullPolicies[priority.ordinal()] = policy;
+        return this;
+    }
+
+    /**
+     * @param weight
+     *     how many high priority metrics the sender takes for every normal one while
+     *     both lanes are busy; defaults to 4
+     */
+    public NonBlockingStatsDClientBuilder highPriorityWeight(int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Lane weight must be positive");
+        }
+        this.laneWeights[Priority.HIGH.ordinal()] = weight;
+        return this;
+    }
+
+    /**
+     * Spill packets to a journal on disk, rather than losing them, while the server
+     * is unreachable. Once packets can be sent again, the journal is replayed in
+     * order at the {@link #spillReplayRate}. Only a {@link #connected} client learns
+     * that the server is unreachable; an unconnected one only spills above the
+     * {@link #spillHighWater}. By default nothing is spilled.
+     *
+     * <p>Spilling and replaying touch the disk, so they are left to the sender thread,
+     * and cannot be combined with {@link #callerRuns}. A directory may only be used by
+     * one client at a time.</p>
+     *
+     * @param directory
+     *     where to keep the journal's memory-mapped segment files; a journal left
+     *     by a previous client is replayed
+     * @param maxBytes
+     *     the most disk space the journal may take; packets beyond it are dropped
+     */
+    public NonBlockingStatsDClientBuilder spill(File directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Spill size must be positive");
+        }
+        this.spillDirectory = directory;
+        this.spillMaxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param highWater
+     *     how many metrics may wait for the sender before it spills packets to the
+     *     journal instead of sending them; by default only an unreachable server
+     *     causes spilling
+     */
+    public NonBlockingStatsDClientBuilder spillHighWater(int highWater) {
+        if (highWater < 0) {
+            throw new IllegalArgumentException("Spill high-water mark must not be negative");
+        }
+        this.spillHighWater = highWater;
+        return this;
+    }
+
+    /**
+     * @param packetsPerSecond
+     *     how fast to replay spilled packets once the server is reachable again;
+     *     defaults to 1000
+     */
+    public NonBlockingStatsDClientBuilder spillReplayRate(int packetsPerSecond) {
+        if (packetsPerSecond <= 0) {
+            throw new IllegalArgumentException("Spill replay rate must be positive");
+        }
+        this.spillReplayRate = packetsPerSecond;
+        return this;
+    }
+
+    /**
+     * @param addressLookup
+     *     looks up the server address in place of resolving the hostname, so that tests
+     *     can change the address
+     */
+    NonBlockingStatsDClientBuilder addressLookup(Callable<InetSocketAddress> addressLookup) {
+        this.addressLookup = addressLookup;
+        return this;
+    }
+
+    /**
+     * @throws StatsDClientException
+     *     if the client could not be started
+     * @throws IllegalStateException
+     *     if both {@link #spill} and {@link #callerRuns} were requested
+     */
+    public NonBlockingStatsDClient build() throws StatsDClientException {
+        if (callerRuns && spillDirectory != null) {
+            throw new IllegalStateException("A client which spills to disk needs a sender thread, and cannot run on its callers");
+        }
+        return new NonBlockingStatsDClient(this);
+    }
+}
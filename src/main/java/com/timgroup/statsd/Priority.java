@@ -0,0 +1,17 @@
+package com.timgroup.statsd;
+
+/**
+ * The priority class of a metric, which selects the lane it is queued in. Each
+ * lane has a bounded buffer and policy of its own, and the sender drains the
+ * lanes in a weighted round robin, so that a flood of bulk metrics can neither
+ * delay nor crowd out the ones alerts depend on.
+ *
+ * @see NonBlockingStatsDClient#withPriority(Priority)
+ * @see NonBlockingStatsDClientBuilder#lane(Priority, int, LaneFullPolicy)
+ */
+public enum Priority {
+    /** Metrics and events which must get through under overload. */
+    HIGH,
+    /** Everything else; the default. */
+    NORMAL
+}
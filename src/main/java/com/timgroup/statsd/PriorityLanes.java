@@ -0,0 +1,184 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One bounded queue per {@link Priority}, offered to by any number of recording
+ * threads and polled by one consumer at a time.
+ *
+ * <p>The consumer drains the lanes in a weighted round robin: up to the weight of
+ * a lane is taken from it before moving on to the next, and an empty lane is passed
+ * over straight away. With the default weights, a flooded normal lane delays a high
+ * priority metric by at most one normal metric. Polling is synchronized, so that a
+ * caller which takes over from the consumer sees where it left off.</p>
+ *
+ */
+final class PriorityLanes<E> {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final LinkedBlockingQueue<E>[] lanes;
+    private final LaneFullPolicy[] policies;
+    private final int[] weights;
+    private final AtomicLongArray dropped = new AtomicLongArray(PRIORITIES.length);
+
+    /* the consumer blocked in poll(timeout), if any, to be woken by the next offer */
+    private volatile Thread waiter;
+
+    /* guarded by this */
+    private int lane;
+    private int credit;
+
+    PriorityLanes(int[] capacities, LaneFullPolicy[] policies, int[] weights) {
+        this.lanes = newLanes(PRIORITIES.length);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new LinkedBlockingQueue<E>(capacities[i]);
+        }
+        this.policies = policies.clone();
+        this.weights = weights.clone();
+        this.credit = weights[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> LinkedBlockingQueue<E>[] newLanes(int count) {
+        return (LinkedBlockingQueue<E>[]) new LinkedBlockingQueue<?>[count];
+    }
+
+    /**
+     * Queue the given element in the lane of the given priority, applying the lane's
+     * policy if it is full.
+     *
+     * @return whether the element was queued
+     */
+    boolean offer(E element, Priority priority) {
+        final FlightRecorderEvents.EnqueueStall stall = FlightRecorderEvents.AVAILABLE ? new FlightRecorderEvents.EnqueueStall() : null;
+        if (stall != null) {
+            stall.begin();
+        }
+        final int index = priority.ordinal();
+        final LinkedBlockingQueue<E> queue = lanes[index];
+        boolean queued = queue.offer(element);
+        if (!queued) {
+            if (policies[index] == LaneFullPolicy.DROP_OLDEST) {
+                while (!queued) {
+                    if (null != queue.poll()) {
+                        dropped.incrementAndGet(index);
+                        recordDrop(priority, true);
+                    }
+                    queued = queue.offer(element);
+                }
+            } else {
+                dropped.incrementAndGet(index);
+                recordDrop(priority, false);
+                return false;
+            }
+        }
+        if (stall != null) {
+            stall.end();
+            if (stall.shouldCommit()) {
+                stall.priority = priority.name();
+                stall.commit();
+            }
+        }
+        final Thread consumer = waiter;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * @return the next element by weighted round robin, or null if every lane is empty
+     */
+    synchronized E poll() {
+        for (int emptied = 0; emptied < lanes.length; ) {
+            if (credit > 0) {
+                final E element = lanes[lane].poll();
+                if (element != null) {
+                    credit--;
+                    return element;
+                }
+                emptied++;
+            }
+            lane = (lane + 1) % lanes.length;
+            credit = weights[lane];
+        }
+        return null;
+    }
+
+    /**
+     * @return the next element by weighted round robin, waiting up to the given time for one to be offered
+     */
+    E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        if (element != null) {
+            return element;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiter = Thread.currentThread();
+        try {
+            while (null == (element = poll())) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return element;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    boolean isEmpty() {
+        for (LinkedBlockingQueue<E> queue : lanes) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of elements queued in all lanes
+     */
+    int size() {
+        int size = 0;
+        for (LinkedBlockingQueue<E> queue : lanes) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of elements queued in the lane of the given priority
+     */
+    int size(Priority priority) {
+        return lanes[priority.ordinal()].size();
+    }
+
+    /**
+     * @return the number of elements dropped from, or refused by, the lane of the given priority
+     */
+    long dropped(Priority priority) {
+        return dropped.get(priority.ordinal());
+    }
+
+    private static void recordDrop(Priority priority, boolean droppedOldest) {
+        if (!FlightRecorderEvents.AVAILABLE) {
+            return;
+        }
+        final FlightRecorderEvents.EnqueueDrop drop = new FlightRecorderEvents.EnqueueDrop();
+        if (drop.isEnabled()) {
+            drop.priority = priority.name();
+            drop.droppedOldest = droppedOldest;
+            drop.commit();
+        }
+    }
+}
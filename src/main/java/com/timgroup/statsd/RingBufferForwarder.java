@@ -0,0 +1,278 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drains the ring files written by one or more {@link RingBufferStatsDClient}s and
+ * forwards their lines to a StatsD server, packed into datagrams.
+ *
+ * <p>Ring files which do not exist yet are picked up once their producer creates them,
+ * and a producer which restarts and reopens its ring continues where it left off.
+ * A ring file which is deleted, replaced or resized is opened afresh once everything
+ * mapped from the old one has been forwarded. Lines the producers had to drop because
+ * a ring was full, and packets the socket only partly sent, are reported to the error
+ * handler as they are noticed.</p>
+ *
+ * <p>Usage: {@code java com.timgroup.statsd.RingBufferForwarder <host> <port> <ring-file>...}</p>
+ *
+ */
+public final class RingBufferForwarder implements Runnable {
+
+    private static final int PACKET_SIZE_BYTES = 1400;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long REOPEN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<Source> sources = new ArrayList<Source>();
+    private final DatagramChannel channel;
+    private final InetSocketAddress address;
+    private final ErrorReporter handler;
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(PACKET_SIZE_BYTES);
+    private int packetLines;
+
+    private volatile boolean running = true;
+    private volatile long linesForwarded;
+    private volatile long linesDropped;
+
+    /**
+     * @param ringFiles
+     *     the rings to drain
+     * @param hostname
+     *     the host name of the targeted StatsD server
+     * @param port
+     *     the port of the targeted StatsD server
+     * @param errorHandler
+     *     handler for send failures and overrun reports; may be null
+     * @throws StatsDClientException
+     *     if the forwarder could not be started
+     */
+    public RingBufferForwarder(List<File> ringFiles, String hostname, int port, StatsDClientErrorHandler errorHandler) throws StatsDClientException {
+        for (File file : ringFiles) {
+            sources.add(new Source(file));
+        }
+        this.handler = new ErrorReporter(errorHandler == null ? NonBlockingStatsDClient.NO_OP_HANDLER : errorHandler, 0);
+        try {
+            this.channel = DatagramChannel.open();
+            this.address = new InetSocketAddress(hostname, port);
+        } catch (Exception e) {
+            throw new StatsDClientException("Failed to start StatsD ring buffer forwarder", e);
+        }
+    }
+
+    /**
+     * Forward lines until {@link #stop()} is called.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            int forwarded = 0;
+            for (Source source : sources) {
+                try {
+                    forwarded += source.drain();
+                } catch (Exception e) {
+                    handler.handle(e);
+                }
+            }
+            try {
+                send();
+            } catch (Exception e) {
+                handler.handle(e);
+            }
+            if (forwarded == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            handler.handle(e);
+        }
+    }
+
+    /**
+     * Ask the forwarding loop to finish after its current pass.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return the number of lines forwarded so far, not counting those in packets
+     *     the socket only partly sent
+     */
+    public long getLinesForwarded() {
+        return linesForwarded;
+    }
+
+    /**
+     * @return the number of lines which were too large to forward
+     */
+    public long getLinesDropped() {
+        return linesDropped;
+    }
+
+    /**
+     * @return the number of lines producers dropped because their ring was full
+     */
+    public long getOverruns() {
+        long overruns = 0;
+        for (Source source : sources) {
+            overruns += source.reportedOverruns;
+        }
+        return overruns;
+    }
+
+    private void send() throws IOException {
+        if (packet.position() == 0) {
+            return;
+        }
+        packet.flip();
+        final int size = packet.remaining();
+        final int lines = packetLines;
+        packetLines = 0;
+        try {
+            final int sentBytes = channel.send(packet, address);
+            if (sentBytes == size) {
+                linesForwarded += lines;
+            } else {
+                handler.shortSend(address, sentBytes, size);
+            }
+        } finally {
+            packet.clear();
+        }
+    }
+
+    private final class Source {
+        private final File file;
+        private MappedRingBuffer ring;
+        private long nextOpenAttempt;
+        private long reportedOverruns;
+        /* identify the file mapped, to notice when it is replaced or resized */
+        private Object fileKey;
+        private long fileSize;
+        private long nextReplacedCheck;
+
+        Source(File file) {
+            this.file = file;
+        }
+
+        int drain() throws IOException {
+            if (ring == null && !open()) {
+                return 0;
+            }
+            int lines = 0;
+            while (true) {
+                if (!packet.hasRemaining()) {
+                    send();
+                }
+                final boolean separate = packet.position() > 0;
+                if (separate) {
+                    packet.put((byte) '\n');
+                }
+                final int length = ring.poll(packet);
+                if (length > 0) {
+                    lines++;
+                    packetLines++;
+                    continue;
+                }
+                if (separate) {
+                    packet.position(packet.position() - 1);
+                }
+                if (length == 0) {
+                    break;
+                }
+                if (separate) {
+                    send();
+                } else {
+                    ring.skip();
+                    linesDropped++;
+                }
+            }
+            reportOverruns();
+            if (lines == 0 && isReplaced()) {
+                /* everything mapped has been forwarded; pick up the new file on the next pass */
+                ring = null;
+                nextOpenAttempt = System.nanoTime();
+            }
+            return lines;
+        }
+
+        private boolean open() {
+            final long now = System.nanoTime();
+            if (now - nextOpenAttempt < 0 || !file.exists()) {
+                return false;
+            }
+            nextOpenAttempt = now + REOPEN_INTERVAL_NANOS;
+            try {
+                /* read before mapping, so that a file replaced in between is noticed later */
+                final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                ring = MappedRingBuffer.openForConsumer(file);
+                reportedOverruns = ring.overruns();
+                fileKey = attributes.fileKey();
+                fileSize = attributes.size();
+                nextReplacedCheck = now + REOPEN_INTERVAL_NANOS;
+                return true;
+            } catch (IOException e) {
+                /* most likely still being created by its producer */
+                return false;
+            }
+        }
+
+        /**
+         * @return whether the ring file has been deleted, replaced or resized since it
+         *     was mapped; checked at most once per reopen interval
+         */
+        private boolean isReplaced() {
+            final long now = System.nanoTime();
+            if (now - nextReplacedCheck < 0) {
+                return false;
+            }
+            nextReplacedCheck = now + REOPEN_INTERVAL_NANOS;
+            if (ring.isResized()) {
+                return true;
+            }
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                return attributes.size() != fileSize
+                        || (fileKey != null && !fileKey.equals(attributes.fileKey()));
+            } catch (IOException e) {
+                /* deleted */
+                return true;
+            }
+        }
+
+        private void reportOverruns() {
+            final long overruns = ring.overruns();
+            if (overruns != reportedOverruns) {
+                handler.handle(new IOException(String.format("Ring [%s] overran, %d lines dropped by its producers",
+                        file, overruns - reportedOverruns)));
+                reportedOverruns = overruns;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: RingBufferForwarder <host> <port> <ring-file>...");
+            System.exit(1);
+        }
+        final List<File> files = new ArrayList<File>();
+        for (int i = 2; i < args.length; i++) {
+            files.add(new File(args[i]));
+        }
+        new RingBufferForwarder(files, args[0], Integer.parseInt(args[1]), new StatsDClientErrorHandler() {
+            @Override public void handle(Exception exception) {
+                System.err.println(exception.getMessage());
+            }
+        }).run();
+    }
+}
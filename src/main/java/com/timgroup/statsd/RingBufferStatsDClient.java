@@ -0,0 +1,271 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A StatsD client which hands encoded metric lines to a local {@link RingBufferForwarder}
+ * through a memory-mapped file, rather than sending them itself.
+ *
+ * <p>There is no sender thread and no socket: each recording method encodes its line
+ * on the calling thread and copies it into the shared ring, without locking and
+ * without a system call. This suits hosts running many JVMs, which can all share
+ * a single forwarder process. Each JVM must use a ring file of its own; a restarted
+ * JVM should reopen the same file.</p>
+ *
+ * <p>When the ring is full, because the forwarder is behind or not running, lines
+ * are dropped and counted as overruns; see {@link #getOverruns()}.</p>
+ *
+ * <p>From the perspective of the application, the recording methods are non-blocking
+ * and are guaranteed not to throw an exception.</p>
+ *
+ */
+public final class RingBufferStatsDClient implements StatsDClient {
+
+    /** Default size of the ring's data region. */
+    public static final int DEFAULT_CAPACITY_BYTES = 4 * 1024 * 1024;
+
+    private static final int MAX_LINE_BYTES = 1400;
+    private static final int MAX_CACHED_SERIES_KEYS = 10000;
+    private static final long SERIES_IDLE_TIMEOUT_MINUTES = 10;
+
+    private final String prefix;
+    private final String[] constantTags;
+    private final LineEncoder encoder;
+    private final StatsDClientErrorHandler handler;
+    private final MappedRingBuffer ring;
+
+    private final SeriesRegistry<SeriesKey> seriesKeys = new SeriesRegistry<SeriesKey>(MAX_CACHED_SERIES_KEYS, SeriesKey.RETENTION);
+    private final ScheduledFuture<?> seriesExpiry = seriesKeys.scheduleExpiry(SERIES_IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    private final SeriesRegistry.Factory<SeriesKey> renderSeriesKey = new SeriesRegistry.Factory<SeriesKey>() {
+        @Override public SeriesKey create(String aspect, String[] tags) {
+            return encoder.seriesKey(prefix, aspect, constantTags, tags);
+        }
+    };
+
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+        @Override protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(MAX_LINE_BYTES);
+        }
+    };
+
+    /**
+     * Create a new client writing to the given ring file, creating the file if
+     * it does not exist yet.
+     *
+     * @param prefix
+     *     the prefix to apply to keys sent via this client
+     * @param ringFile
+     *     the memory-mapped file shared with the forwarder
+     * @param constantTags
+     *     tags to be added to all content sent
+     * @throws StatsDClientException
+     *     if the ring file could not be opened
+     */
+    public RingBufferStatsDClient(String prefix, File ringFile, String... constantTags) throws StatsDClientException {
+        this(prefix, ringFile, DEFAULT_CAPACITY_BYTES, constantTags, null, LineEncoders.INFLUX);
+    }
+
+    /**
+     * Create a new client writing to the given ring file, creating the file if
+     * it does not exist yet. All exceptions thrown during subsequent usage are
+     * passed to the specified handler and then consumed.
+     *
+     * @param prefix
+     *     the prefix to apply to keys sent via this client
+     * @param ringFile
+     *     the memory-mapped file shared with the forwarder
+     * @param capacityBytes
+     *     the size of the ring's data region, rounded up to a power of two
+     * @param constantTags
+     *     tags to be added to all content sent
+     * @param errorHandler
+     *     handler to use when an exception occurs during usage; may be null
+     * @param encoder
+     *     the wire format of metric lines, see {@link LineEncoders}
+     * @throws StatsDClientException
+     *     if the ring file could not be opened
+     */
+    public RingBufferStatsDClient(String prefix, File ringFile, int capacityBytes, String[] constantTags,
+                                  StatsDClientErrorHandler errorHandler, LineEncoder encoder) throws StatsDClientException {
+        this.prefix = NonBlockingStatsDClient.prefix(prefix);
+        this.constantTags = NonBlockingStatsDClient.constantTags(constantTags);
+        this.handler = errorHandler == null ? NonBlockingStatsDClient.NO_OP_HANDLER : errorHandler;
+        this.encoder = encoder;
+        try {
+            this.ring = MappedRingBuffer.openForProducer(ringFile, capacityBytes);
+        } catch (Exception e) {
+            seriesExpiry.cancel(false);
+            throw new StatsDClientException("Failed to open StatsD ring buffer", e);
+        }
+    }
+
+    /**
+     * There is nothing to flush; lines already in the ring remain there for the forwarder.
+     */
+    @Override
+    public void stop() {
+        /* the mapping is released when the client is garbage collected */
+        seriesExpiry.cancel(false);
+    }
+
+    /**
+     * There is nothing to drain; lines already in the ring remain there for the forwarder.
+     */
+    @Override
+    public DrainResult stop(long timeout, TimeUnit unit) {
+        stop();
+        return DrainResult.NOTHING_PENDING;
+    }
+
+    /**
+     * @return an estimate of the bytes of heap held for the series this client has
+     *     recorded; series unrecorded for ten minutes are forgotten
+     */
+    public long getRetainedSeriesBytes() {
+        return seriesKeys.retainedBytes();
+    }
+
+    /**
+     * @return the number of lines dropped because the ring was full, across all
+     *     producers which have used the ring file
+     */
+    public long getOverruns() {
+        return ring.overruns();
+    }
+
+    @Override public void count(String aspect, long delta, String... tags) {
+        send(aspect, delta, MetricType.COUNTER, tags);
+    }
+
+    @Override public void incrementCounter(String aspect, String... tags) {
+        count(aspect, 1, tags);
+    }
+
+    @Override public void increment(String aspect, String... tags) {
+        incrementCounter(aspect, tags);
+    }
+
+    @Override public void decrementCounter(String aspect, String... tags) {
+        count(aspect, -1, tags);
+    }
+
+    @Override public void decrement(String aspect, String... tags) {
+        decrementCounter(aspect, tags);
+    }
+
+    @Override public void recordGaugeValue(String aspect, double value, String... tags) {
+        send(aspect, value, MetricType.GAUGE, tags);
+    }
+
+    @Override public void gauge(String aspect, double value, String... tags) {
+        recordGaugeValue(aspect, value, tags);
+    }
+
+    @Override public void recordGaugeValue(String aspect, long value, String... tags) {
+        send(aspect, value, MetricType.GAUGE, tags);
+    }
+
+    @Override public void gauge(String aspect, long value, String... tags) {
+        recordGaugeValue(aspect, value, tags);
+    }
+
+    @Override public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
+        send(aspect, timeInMs, MetricType.TIMER, tags);
+    }
+
+    @Override public void time(String aspect, long value, String... tags) {
+        recordExecutionTime(aspect, value, tags);
+    }
+
+    @Override public void recordHistogramValue(String aspect, double value, String... tags) {
+        send(aspect, value, MetricType.HISTOGRAM, tags);
+    }
+
+    @Override public void histogram(String aspect, double value, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    @Override public void recordHistogramValue(String aspect, long value, String... tags) {
+        send(aspect, value, MetricType.HISTOGRAM, tags);
+    }
+
+    @Override public void histogram(String aspect, long value, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    @Override public StatsDTimer timer(String aspect, String... tags) {
+        final SeriesKey key = seriesKeys.get(aspect, tags, renderSeriesKey);
+        return new StatsDTimer() {
+            @Override protected void recordMillis(double elapsedMillis) {
+                send(key, elapsedMillis, MetricType.TIMER);
+            }
+
+            @Override protected void recordElapsedNanos(long elapsedNanos) {
+                sendNanos(key, elapsedNanos, MetricType.TIMER);
+            }
+        };
+    }
+
+    @Override public void recordEvent(StatsDEvent event, String... tags) {
+        try {
+            ring.offer(ByteBuffer.wrap(EventEncoding.event(event, constantTags, tags, MAX_LINE_BYTES)));
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    @Override public void recordServiceCheckRun(StatsDServiceCheck check, String... tags) {
+        try {
+            ring.offer(ByteBuffer.wrap(EventEncoding.serviceCheck(check, constantTags, tags, MAX_LINE_BYTES)));
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    private void send(String aspect, long value, MetricType type, String[] tags) {
+        try {
+            final ByteBuffer line = scratch.get();
+            line.clear();
+            encoder.encode(line, seriesKeys.get(aspect, tags, renderSeriesKey), value, type);
+            line.flip();
+            ring.offer(line);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    private void send(String aspect, double value, MetricType type, String[] tags) {
+        try {
+            send(seriesKeys.get(aspect, tags, renderSeriesKey), value, type);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    private void send(SeriesKey key, double value, MetricType type) {
+        try {
+            final ByteBuffer line = scratch.get();
+            line.clear();
+            encoder.encode(line, key, value, type);
+            line.flip();
+            ring.offer(line);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    private void sendNanos(SeriesKey key, long elapsedNanos, MetricType type) {
+        try {
+            final ByteBuffer line = scratch.get();
+            line.clear();
+            encoder.encodeNanos(line, key, elapsedNanos, type);
+            line.flip();
+            ring.offer(line);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+}
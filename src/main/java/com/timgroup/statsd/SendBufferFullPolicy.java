@@ -0,0 +1,12 @@
+package com.timgroup.statsd;
+
+/**
+ * What a non-blocking client does with a packet when the socket send buffer is full.
+ *
+ */
+public enum SendBufferFullPolicy {
+    /** Drop the packet straight away. */
+    DROP,
+    /** Retry a few times with a growing backoff, then drop the packet. */
+    RETRY
+}
@@ -0,0 +1,49 @@
+package com.timgroup.statsd;
+
+/**
+ * The pre-encoded, invariant parts of a metric line, as produced by a
+ * {@link LineEncoder}.
+ *
+ * <p>A line is made up of the {@code head} (typically the metric name), the
+ * value and type, and the {@code tail} (typically a tag suffix). Because a key
+ * holds nothing but bytes, it can be rendered once and written any number of
+ * times without further allocation.</p>
+ *
+ */
+public final class SeriesKey {
+
+    private static final byte[] EMPTY = new byte[0];
+    /* the key and its two arrays */
+    private static final int KEY_BYTES = 48;
+
+    /** Drops keys once idle for longer than the timeout given to {@link SeriesRegistry#scheduleExpiry}. */
+    static final SeriesRegistry.Retention<SeriesKey> RETENTION = new SeriesRegistry.Retention<SeriesKey>() {
+        @Override public boolean isExpired(SeriesKey key, int idleTicks) {
+            return idleTicks > SeriesRegistry.IDLE_TICKS;
+        }
+
+        @Override public long bytes(SeriesKey key) {
+            return KEY_BYTES + key.length();
+        }
+    };
+
+    final byte[] head;
+    final byte[] tail;
+
+    public SeriesKey(String head, String tail) {
+        this.head = head.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+        this.tail = (tail == null || tail.isEmpty()) ? EMPTY : tail.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET);
+    }
+
+    /**
+     * @return the number of bytes this key contributes to an encoded line
+     */
+    public int length() {
+        return head.length + tail.length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(head, NonBlockingStatsDClient.MESSAGE_CHARSET) + "<value>" + new String(tail, NonBlockingStatsDClient.MESSAGE_CHARSET);
+    }
+}
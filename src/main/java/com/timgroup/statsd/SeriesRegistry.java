@@ -0,0 +1,353 @@
+package com.timgroup.statsd;
+
+import java.util.Collection;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-series state of a client, looked up by aspect and tags without rendering
+ * them into a single string first.
+ *
+ * <p>The hash of a series combines the hash codes of its aspect and tags, which
+ * {@link String} caches, so looking up a series which has been seen before
+ * allocates nothing. Entries live in an open addressing table and are verified
+ * against the stored aspect and tags, so that colliding series never share state.
+ * Lookups never lock; only adding a series does.</p>
+ *
+ * <p>Once {@code maxSeries} series are held, further series are created afresh on
+ * every lookup rather than held, which bounds the memory of a client recording
+ * unbounded tag values. Such lookups do not lock either, and the state of a new
+ * series is created before taking the lock, so that a slow factory never holds up
+ * other threads; a thread which loses the race to add a series discards its own.</p>
+ *
+ * <p>Series which are no longer recorded are dropped by {@link #expire}, according
+ * to a {@link Retention}. Each call is one tick of the registry's clock, and a lookup
+ * stamps its series with the current tick, so the retention can tell how long a
+ * series has been idle. A call examines a bounded number of slots, carrying on where
+ * the last one stopped, so that expiry costs the same however many series are held.
+ * Dropped entries leave a tombstone, which lookups step over, until the table is
+ * next rebuilt.</p>
+ */
+final class SeriesRegistry<V> {
+
+    /**
+     * Creates the state of a series on its first lookup.
+     */
+    interface Factory<V> {
+        V create(String aspect, String[] tags);
+    }
+
+    /**
+     * Decides when a series is dropped, and estimates the memory its state holds.
+     */
+    interface Retention<V> {
+        /**
+         * @param idleTicks
+         *     the number of calls to {@link #expire} since the series was last looked up
+         */
+        boolean isExpired(V value, int idleTicks);
+
+        /**
+         * @return an estimate of the bytes held by the state of a series, beyond its aspect and tags
+         */
+        long bytes(V value);
+    }
+
+    /** Drops nothing, and counts only the aspect and tags of each series. */
+    static final Retention<Object> RETAIN_ALL = new Retention<Object>() {
+        @Override public boolean isExpired(Object value, int idleTicks) {
+            return false;
+        }
+
+        @Override public long bytes(Object value) {
+            return 0;
+        }
+    };
+
+    /** The ticks {@link #scheduleExpiry} makes of an idle timeout. */
+    static final int IDLE_TICKS = 4;
+    /** The slots {@link #scheduleExpiry} examines per tick. */
+    static final int EXPIRY_SLOTS = 8192;
+
+    private static final String[] NO_TAGS = new String[0];
+    private static final int INITIAL_CAPACITY = 64;
+    /* rough sizes, as on a 64-bit JVM with compressed references */
+    private static final int REFERENCE_BYTES = 4;
+    private static final int ENTRY_BYTES = 32;
+    private static final int STRING_BYTES = 40;
+    private static final int ARRAY_BYTES = 16;
+    @SuppressWarnings("rawtypes")
+    private static final Entry TOMBSTONE = new Entry<Object>(0, null, NO_TAGS, null, 0);
+
+    private final int maxSeries;
+    private final Retention<? super V> retention;
+    private volatile AtomicReferenceArray<Entry<V>> table = new AtomicReferenceArray<Entry<V>>(INITIAL_CAPACITY);
+    private volatile int tick;
+    /* written under this, and read without it to refuse series once full */
+    private volatile int size;
+    /* guarded by this */
+    private int tombstones;
+    private int cursor;
+    private long bytes;
+
+    SeriesRegistry(int maxSeries) {
+        this(maxSeries, RETAIN_ALL);
+    }
+
+    SeriesRegistry(int maxSeries, Retention<? super V> retention) {
+        this.maxSeries = maxSeries;
+        this.retention = retention;
+    }
+
+    /**
+     * @return the state of the given series, created by the factory if the series is not yet held
+     */
+    V get(String aspect, String[] tags, Factory<V> factory) {
+        final int hash = hash(aspect, tags);
+        final Entry<V> entry = find(table, hash, aspect, tags);
+        if (entry == null) {
+            return add(hash, aspect, tags, factory);
+        }
+        final int now = tick;
+        if (entry.touched != now) {
+            entry.touched = now;
+        }
+        return entry.value;
+    }
+
+    /**
+     * @return the number of series held
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Add the state of every series held to the given collection.
+     */
+    void addValuesTo(Collection<? super V> values) {
+        final AtomicReferenceArray<Entry<V>> entries = table;
+        for (int i = 0; i < entries.length(); i++) {
+            final Entry<V> entry = entries.get(i);
+            if (entry != null && entry != TOMBSTONE) {
+                values.add(entry.value);
+            }
+        }
+    }
+
+    /**
+     * Advance the clock by one tick, and drop the expired series among the next
+     * {@code maxSlots} slots of the table.
+     *
+     * @param expired
+     *     receives the state of each series dropped; may be null
+     * @return the number of series dropped
+     */
+    synchronized int expire(int maxSlots, Collection<? super V> expired) {
+        final int now = ++tick;
+        final AtomicReferenceArray<Entry<V>> entries = table;
+        final int slots = Math.min(maxSlots, entries.length());
+        int dropped = 0;
+        for (int n = 0; n < slots; n++) {
+            final int i = cursor++ & (entries.length() - 1);
+            final Entry<V> entry = entries.get(i);
+            if (entry == null || entry == TOMBSTONE || !retention.isExpired(entry.value, now - entry.touched)) {
+                continue;
+            }
+            entries.set(i, tombstone());
+            size--;
+            tombstones++;
+            bytes -= entry.bytes;
+            dropped++;
+            if (expired != null) {
+                expired.add(entry.value);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return an estimate of the bytes held by the table and the series in it
+     */
+    synchronized long retainedBytes() {
+        return (long) table.length() * REFERENCE_BYTES + bytes;
+    }
+
+    /**
+     * Call {@link #expire} {@link #IDLE_TICKS} times per idle timeout, from a thread
+     * shared by every registry, until the returned future is cancelled. A retention
+     * which expires series idle for more than {@code IDLE_TICKS} ticks then drops
+     * series idle for longer than the timeout.
+     */
+    ScheduledFuture<?> scheduleExpiry(long idleTimeout, TimeUnit unit) {
+        final long period = Math.max(1, unit.toNanos(idleTimeout) / IDLE_TICKS);
+        return Expiry.EXECUTOR.scheduleAtFixedRate(new Runnable() {
+            @Override public void run() {
+                expire(EXPIRY_SLOTS, null);
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    private V add(int hash, String aspect, String[] tags, Factory<V> factory) {
+        final V value = factory.create(aspect, tags);
+        if (size >= maxSeries) {
+            /* the series may have been added by another thread just as the table filled */
+            final Entry<V> added = find(table, hash, aspect, tags);
+            return added == null ? value : added.value;
+        }
+        synchronized (this) {
+            final Entry<V> existing = find(table, hash, aspect, tags);
+            if (existing != null) {
+                return existing.value;
+            }
+            if (size >= maxSeries) {
+                return value;
+            }
+            return hold(hash, aspect, tags, value);
+        }
+    }
+
+    /* guarded by this */
+    private V hold(int hash, String aspect, String[] tags, V value) {
+        if ((size + tombstones + 1) * 2 > table.length()) {
+            rebuild();
+        }
+        final String[] copy = tags == null ? NO_TAGS : tags.clone();
+        final Entry<V> entry = new Entry<V>(hash, aspect, copy, value, bytes(aspect, copy) + retention.bytes(value));
+        entry.touched = tick;
+        if (insert(table, entry)) {
+            tombstones--;
+        }
+        size++;
+        bytes += entry.bytes;
+        return value;
+    }
+
+    /**
+     * Copy the live entries into a fresh table, twice as large if they alone fill
+     * more than a quarter of the current one.
+     */
+    private void rebuild() {
+        final AtomicReferenceArray<Entry<V>> old = table;
+        final int capacity = (size + 1) * 2 > old.length() / 2 ? old.length() * 2 : old.length();
+        final AtomicReferenceArray<Entry<V>> rebuilt = new AtomicReferenceArray<Entry<V>>(capacity);
+        for (int i = 0; i < old.length(); i++) {
+            final Entry<V> entry = old.get(i);
+            if (entry != null && entry != TOMBSTONE) {
+                insert(rebuilt, entry);
+            }
+        }
+        tombstones = 0;
+        table = rebuilt;
+    }
+
+    /**
+     * Put the entry in the first free slot of its probe sequence, which may be a tombstone.
+     *
+     * @return whether a tombstone was replaced
+     */
+    private static <V> boolean insert(AtomicReferenceArray<Entry<V>> entries, Entry<V> entry) {
+        final int mask = entries.length() - 1;
+        int i = entry.hash & mask;
+        Entry<V> occupant;
+        while ((occupant = entries.get(i)) != null && occupant != TOMBSTONE) {
+            i = (i + 1) & mask;
+        }
+        entries.set(i, entry);
+        return occupant == TOMBSTONE;
+    }
+
+    private static <V> Entry<V> find(AtomicReferenceArray<Entry<V>> entries, int hash, String aspect, String[] tags) {
+        final int mask = entries.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            final Entry<V> entry = entries.get(i);
+            if (entry == null) {
+                return null;
+            }
+            if (entry != TOMBSTONE && entry.hash == hash && entry.matches(aspect, tags)) {
+                return entry;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Entry<V> tombstone() {
+        return TOMBSTONE;
+    }
+
+    private static long bytes(String aspect, String[] tags) {
+        long bytes = ENTRY_BYTES + ARRAY_BYTES + (long) tags.length * REFERENCE_BYTES + bytes(aspect);
+        for (String tag : tags) {
+            bytes += bytes(tag);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return an estimate of the bytes held by a string, assuming one byte per character
+     */
+    static long bytes(String s) {
+        return s == null ? 0 : STRING_BYTES + s.length();
+    }
+
+    static int hash(String aspect, String[] tags) {
+        int hash = aspect == null ? 0 : aspect.hashCode();
+        if (tags != null) {
+            for (String tag : tags) {
+                hash = hash * 31 + (tag == null ? 0 : tag.hashCode());
+            }
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Entry<V> {
+        final int hash;
+        final String aspect;
+        final String[] tags;
+        final V value;
+        final long bytes;
+        volatile int touched;
+
+        Entry(int hash, String aspect, String[] tags, V value, long bytes) {
+            this.hash = hash;
+            this.aspect = aspect;
+            this.tags = tags;
+            this.value = value;
+            this.bytes = bytes;
+        }
+
+        boolean matches(String aspect, String[] tags) {
+            if (aspect == null ? this.aspect != null : !aspect.equals(this.aspect)) {
+                return false;
+            }
+            final int length = tags == null ? 0 : tags.length;
+            if (this.tags.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                final String tag = tags[i];
+                if (tag == null ? this.tags[i] != null : !tag.equals(this.tags[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Holds the thread shared by every registry, started on first use. The expiry of a
+     * stopped client is removed from it straight away rather than left in its queue.
+     */
+    private static final class Expiry {
+        static final ScheduledThreadPoolExecutor EXECUTOR = newExecutor();
+
+        private static ScheduledThreadPoolExecutor newExecutor() {
+            final ScheduledThreadPoolExecutor executor =
+                    new ScheduledThreadPoolExecutor(1, NonBlockingStatsDClient.threadFactory("StatsD-expiry-"));
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+}
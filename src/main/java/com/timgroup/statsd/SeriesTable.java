@@ -0,0 +1,266 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The aggregates of one interval, keyed by the bytes of a series name and its
+ * {@link MetricType}, for a {@link StatsDServer}.
+ *
+ * <p>An open addressing table over parallel primitive arrays: recording into a
+ * series already seen costs a hash of its name and a comparison, and allocates
+ * nothing. A series keeps its slot from one interval to the next, and is only
+ * passed to the sink in intervals where it was recorded. A series left unrecorded
+ * for too many intervals in a row is dropped, and the table shrinks to fit those
+ * which remain.</p>
+ *
+ * <p>Not thread-safe; each receiver thread records into a table of its own.</p>
+ */
+final class SeriesTable {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final MetricType[] TYPES = MetricType.values();
+    /* rough sizes, as on a 64-bit JVM with compressed references: the parallel arrays
+       per slot, and the key array and name string per series */
+    private static final int SLOT_BYTES = 4 + 4 + 1 + 1 + 4 + 8 + 8 + 8 + 8 + 4;
+    private static final int SERIES_BYTES = 16 + 40;
+
+    private byte[][] keys;
+    private int[] hashes;
+    private byte[] types;
+    private boolean[] recorded;
+    private String[] names;
+    /** The sum of a counter, or the number of values of any other type. */
+    private long[] counts;
+    /** The latest value of a gauge, or the sum of a timer or histogram. */
+    private double[] values;
+    private double[] mins;
+    private double[] maxs;
+    /** The number of intervals in a row in which a series was not recorded. */
+    private int[] idle;
+    private int size;
+    private long keyBytes;
+
+    SeriesTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return the number of series held, whether or not they were recorded this interval
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return an estimate of the bytes of heap held by this table
+     */
+    long retainedBytes() {
+        return (long) keys.length * SLOT_BYTES + (long) size * SERIES_BYTES + keyBytes * 2;
+    }
+
+    static int hash(byte[] data, int offset, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ data[i]) * 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the slot of the given series, which is added if not yet held
+     */
+    int slot(byte[] data, int offset, int length, int hash, MetricType type) {
+        final int mask = keys.length - 1;
+        int i = (hash ^ (hash >>> 16)) & mask;
+        while (keys[i] != null) {
+            if (hashes[i] == hash && types[i] == type.ordinal() && matches(keys[i], data, offset, length)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            rebuild(keys.length * 2, Integer.MAX_VALUE);
+            return slot(data, offset, length, hash, type);
+        }
+        keys[i] = Arrays.copyOfRange(data, offset, offset + length);
+        hashes[i] = hash;
+        types[i] = (byte) type.ordinal();
+        size++;
+        keyBytes += length;
+        return i;
+    }
+
+    void count(int slot, long delta) {
+        counts[slot] += delta;
+        recorded[slot] = true;
+    }
+
+    void gauge(int slot, double value) {
+        values[slot] = value;
+        counts[slot]++;
+        recorded[slot] = true;
+    }
+
+    void sample(int slot, double value) {
+        sample(slot, 1, value, value, value);
+    }
+
+    private void sample(int slot, long count, double sum, double min, double max) {
+        if (counts[slot] == 0 || min < mins[slot]) {
+            mins[slot] = min;
+        }
+        if (counts[slot] == 0 || max > maxs[slot]) {
+            maxs[slot] = max;
+        }
+        counts[slot] += count;
+        values[slot] += sum;
+        recorded[slot] = true;
+    }
+
+    /**
+     * Add what was recorded into the given table this interval to this table.
+     * A gauge recorded in both takes the other table's value.
+     */
+    void mergeFrom(SeriesTable other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (!other.recorded[i]) {
+                continue;
+            }
+            final MetricType type = TYPES[other.types[i]];
+            final int slot = slot(other.keys[i], 0, other.keys[i].length, other.hashes[i], type);
+            if (names[slot] == null) {
+                names[slot] = other.names[i];
+            }
+            switch (type) {
+                case COUNTER:
+                    count(slot, other.counts[i]);
+                    break;
+                case GAUGE:
+                    gauge(slot, other.values[i]);
+                    break;
+                default:
+                    sample(slot, other.counts[i], other.values[i], other.mins[i], other.maxs[i]);
+            }
+        }
+    }
+
+    /**
+     * Pass each series recorded this interval to the given sink.
+     *
+     * @return the number of series passed
+     */
+    int emit(AggregateSink sink) throws IOException {
+        int emitted = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (!recorded[i]) {
+                continue;
+            }
+            final String name = name(i);
+            final MetricType type = TYPES[types[i]];
+            switch (type) {
+                case COUNTER:
+                    sink.counter(name, counts[i]);
+                    break;
+                case GAUGE:
+                    sink.gauge(name, values[i]);
+                    break;
+                default:
+                    sink.distribution(name, type, counts[i], values[i], mins[i], maxs[i]);
+            }
+            emitted++;
+        }
+        return emitted;
+    }
+
+    /**
+     * Start a new interval, dropping the series which have now gone unrecorded for
+     * {@code maxIdleIntervals} intervals in a row.
+     */
+    void reset(int maxIdleIntervals) {
+        int expired = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (recorded[i]) {
+                recorded[i] = false;
+                counts[i] = 0;
+                values[i] = 0;
+                idle[i] = 0;
+            } else if (keys[i] != null && ++idle[i] >= maxIdleIntervals) {
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            int capacity = INITIAL_CAPACITY;
+            while ((size - expired) * 2 > capacity) {
+                capacity *= 2;
+            }
+            rebuild(capacity, maxIdleIntervals);
+        }
+    }
+
+    private String name(int slot) {
+        if (names[slot] == null) {
+            names[slot] = new String(keys[slot], NonBlockingStatsDClient.MESSAGE_CHARSET);
+        }
+        return names[slot];
+    }
+
+    private static boolean matches(byte[] key, byte[] data, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void allocate(int capacity) {
+        keys = new byte[capacity][];
+        hashes = new int[capacity];
+        types = new byte[capacity];
+        recorded = new boolean[capacity];
+        names = new String[capacity];
+        counts = new long[capacity];
+        values = new double[capacity];
+        mins = new double[capacity];
+        maxs = new double[capacity];
+        idle = new int[capacity];
+        size = 0;
+        keyBytes = 0;
+    }
+
+    /**
+     * Move every series idle for fewer than {@code maxIdleIntervals} intervals into
+     * a table of the given capacity.
+     */
+    private void rebuild(int capacity, int maxIdleIntervals) {
+        final byte[][] oldKeys = keys;
+        final int[] oldHashes = hashes;
+        final byte[] oldTypes = types;
+        final boolean[] oldRecorded = recorded;
+        final String[] oldNames = names;
+        final long[] oldCounts = counts;
+        final double[] oldValues = values;
+        final double[] oldMins = mins;
+        final double[] oldMaxs = maxs;
+        final int[] oldIdle = idle;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null || oldIdle[i] >= maxIdleIntervals) {
+                continue;
+            }
+            final int slot = slot(oldKeys[i], 0, oldKeys[i].length, oldHashes[i], TYPES[oldTypes[i]]);
+            keys[slot] = oldKeys[i];
+            recorded[slot] = oldRecorded[i];
+            names[slot] = oldNames[i];
+            counts[slot] = oldCounts[i];
+            values[slot] = oldValues[i];
+            mins[slot] = oldMins[i];
+            maxs[slot] = oldMaxs[i];
+            idle[slot] = oldIdle[i];
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A size-capped journal of packets in memory-mapped segment files, which holds
+ * what a client could not send during an outage until it can be replayed.
+ *
+ * <p>Packets are appended to the newest segment and read, in order, from the
+ * oldest. A segment is deleted once every packet in it has been read. Packets which
+ * would take the journal past its cap are refused, so that the oldest are replayed
+ * first and nothing already journalled is lost.</p>
+ *
+ * <p>The journal survives a restart: each segment records how far it has been read,
+ * and a journal opened on a directory holding segments carries on from there. A
+ * journal holds a lock on a file in its directory until it is closed, so that two
+ * journals, in this process or another, never share a directory.</p>
+ *
+ * <p>Layout of a segment: an {@code int} read position, padding up to
+ * {@link #HEADER}, then records of an {@code int} length followed by the packet. A
+ * zero length marks the end of the records written so far.</p>
+ *
+ * <p>Not thread-safe; used by the sender alone.</p>
+ */
+final class SpillJournal {
+
+    static final int HEADER = 8;
+    private static final int RECORD_HEADER = 4;
+    private static final String SUFFIX = ".spill";
+    private static final String LOCK_FILE = "journal.lock";
+
+    private final File directory;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSequence;
+
+    /**
+     * @param directory
+     *     where to keep the segment files, created if necessary
+     * @param segmentBytes
+     *     the size of each segment file
+     * @param maxBytes
+     *     the most disk space the segments may take, at least one segment
+     * @throws IOException
+     *     if the directory cannot be created, or is in use by another journal
+     */
+    SpillJournal(File directory, int segmentBytes, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spill directory " + directory);
+        }
+        this.lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        this.lock = tryLock(lockChannel);
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Spill directory " + directory + " is in use by another client");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        for (File file : files) {
+            final Segment segment = Segment.open(file, segmentBytes);
+            if (segment.isFullyRead()) {
+                segment.delete();
+            } else {
+                segments.addLast(segment);
+            }
+            nextSequence = Math.max(nextSequence, sequenceOf(file) + 1);
+        }
+    }
+
+    /**
+     * Append the packet between the buffer's position and limit, leaving both unchanged.
+     *
+     * @return false if the journal is full, or the packet does not fit in a segment
+     */
+    boolean append(ByteBuffer packet) throws IOException {
+        final int length = packet.remaining();
+        if (length == 0 || RECORD_HEADER + length > segmentBytes - HEADER - RECORD_HEADER) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || !tail.fits(length)) {
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            tail = Segment.open(new File(directory, String.format("%016d%s", nextSequence++, SUFFIX)), segmentBytes);
+            segments.addLast(tail);
+        }
+        tail.append(packet);
+        return true;
+    }
+
+    /**
+     * Copy the oldest packet into the given buffer, without removing it.
+     *
+     * @return false if the journal is empty
+     * @throws java.nio.BufferOverflowException
+     *     if the packet does not fit in the buffer
+     */
+    boolean peek(ByteBuffer into) {
+        final Segment head = segments.peekFirst();
+        return head != null && head.peek(into);
+    }
+
+    /**
+     * Remove the oldest packet, as last returned by {@link #peek}.
+     */
+    void advance() {
+        final Segment head = segments.peekFirst();
+        if (head == null) {
+            return;
+        }
+        head.advance();
+        if (head.isFullyRead()) {
+            segments.removeFirst();
+            head.delete();
+        }
+    }
+
+    boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * @return the disk space taken by the segments
+     */
+    long bytes() {
+        return (long) segments.size() * segmentBytes;
+    }
+
+    /**
+     * Write the segments out to disk.
+     */
+    void force() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Write the segments out to disk and release the directory.
+     */
+    void close() throws IOException {
+        force();
+        try {
+            lock.release();
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            /* held by a journal in this process */
+            return null;
+        }
+    }
+
+    private static long sequenceOf(File file) {
+        final String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int readPosition;
+        int writePosition;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.readPosition = Math.max(HEADER, buffer.getInt(0));
+            int position = HEADER;
+            int length;
+            while (position + RECORD_HEADER <= buffer.capacity() && (length = buffer.getInt(position)) > 0
+                    && position + RECORD_HEADER + length <= buffer.capacity()) {
+                position += RECORD_HEADER + length;
+            }
+            this.writePosition = position;
+        }
+
+        static Segment open(File file, int segmentBytes) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+            } finally {
+                raf.close();
+            }
+        }
+
+        boolean fits(int length) {
+            /* room for the record and for the zero length after it */
+            return writePosition + RECORD_HEADER + length + RECORD_HEADER <= buffer.capacity();
+        }
+
+        void append(ByteBuffer packet) {
+            final int length = packet.remaining();
+            final ByteBuffer record = buffer.duplicate();
+            record.position(writePosition + RECORD_HEADER);
+            record.put(packet.duplicate());
+            /* the length goes last, so that a crash part way through leaves the record unwritten */
+            buffer.putInt(writePosition, length);
+            writePosition += RECORD_HEADER + length;
+        }
+
+        boolean peek(ByteBuffer into) {
+            if (readPosition >= writePosition) {
+                return false;
+            }
+            final int length = buffer.getInt(readPosition);
+            final ByteBuffer record = buffer.duplicate();
+            record.limit(readPosition + RECORD_HEADER + length).position(readPosition + RECORD_HEADER);
+            into.put(record);
+            return true;
+        }
+
+        void advance() {
+            readPosition += RECORD_HEADER + buffer.getInt(readPosition);
+            buffer.putInt(0, readPosition);
+        }
+
+        boolean isFullyRead() {
+            return readPosition >= writePosition;
+        }
+
+        void delete() {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.timgroup.statsd;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Several metrics encoded into one buffer, to be handed to the sender of a
+ * {@link NonBlockingStatsDClient} in a single operation rather than one at a time.
+ * See {@link NonBlockingStatsDClient#batch()}.
+ *
+ * <p>A batch belongs to the thread which obtained it, and is reused by that thread
+ * for every batch it records. The recording methods return the batch, so that
+ * calls may be chained, and like those of the client they are guaranteed not to
+ * throw an exception. Nothing is sent until {@link #send()} is called.</p>
+ *
+ */
+public final class StatsDBatch {
+
+    private static final int INITIAL_CAPACITY_BYTES = 1400;
+    private static final int MAX_CAPACITY_BYTES = 64 * 1024;
+
+    private final NonBlockingStatsDClient client;
+    private final LineEncoder encoder;
+    private ByteBuffer lines = ByteBuffer.allocate(INITIAL_CAPACITY_BYTES);
+    private int metrics;
+    Priority priority = Priority.NORMAL;
+
+    StatsDBatch(NonBlockingStatsDClient client) {
+        this.client = client;
+        this.encoder = client.encoder();
+    }
+
+    /**
+     * Adds a counter adjustment to this batch; see {@link StatsDClient#count}.
+     */
+    public StatsDBatch count(String aspect, long delta, String... tags) {
+        return append(aspect, delta, MetricType.COUNTER, tags);
+    }
+
+    /**
+     * Adds a gauge reading to this batch; see {@link StatsDClient#recordGaugeValue(String, double, String[])}.
+     */
+    public StatsDBatch gauge(String aspect, double value, String... tags) {
+        return append(aspect, value, MetricType.GAUGE, tags);
+    }
+
+    /**
+     * Adds a gauge reading to this batch; see {@link StatsDClient#recordGaugeValue(String, long, String[])}.
+     */
+    public StatsDBatch gauge(String aspect, long value, String... tags) {
+        return append(aspect, value, MetricType.GAUGE, tags);
+    }
+
+    /**
+     * Adds an execution time in milliseconds to this batch; see {@link StatsDClient#recordExecutionTime}.
+     */
+    public StatsDBatch time(String aspect, long timeInMs, String... tags) {
+        return append(aspect, timeInMs, MetricType.TIMER, tags);
+    }
+
+    /**
+     * Adds a histogram value to this batch; see {@link StatsDClient#recordHistogramValue(String, double, String[])}.
+     */
+    public StatsDBatch histogram(String aspect, double value, String... tags) {
+        return append(aspect, value, MetricType.HISTOGRAM, tags);
+    }
+
+    /**
+     * Adds a histogram value to this batch; see {@link StatsDClient#recordHistogramValue(String, long, String[])}.
+     */
+    public StatsDBatch histogram(String aspect, long value, String... tags) {
+        return append(aspect, value, MetricType.HISTOGRAM, tags);
+    }
+
+    /**
+     * @return the number of metrics recorded into this batch since it was last sent
+     */
+    public int size() {
+        return metrics;
+    }
+
+    /**
+     * Hands the metrics of this batch to the sender as a single message, and empties
+     * the batch for reuse.
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     */
+    public void send() {
+        if (metrics == 0) {
+            return;
+        }
+        try {
+            lines.flip();
+            client.send(lines, metrics, priority);
+        } catch (Exception e) {
+            client.handler().handle(e);
+        } finally {
+            clear();
+        }
+    }
+
+    void clear() {
+        lines.clear();
+        metrics = 0;
+    }
+
+    private StatsDBatch append(String aspect, long value, MetricType type, String[] tags) {
+        try {
+            final SeriesKey key = client.seriesKey(aspect, tags);
+            while (true) {
+                final int start = lines.position();
+                try {
+                    if (start > 0) {
+                        lines.put((byte) '\n');
+                    }
+                    encoder.encode(lines, key, value, type);
+                    metrics++;
+                    return this;
+                } catch (BufferOverflowException e) {
+                    lines.position(start);
+                    makeRoom(start);
+                }
+            }
+        } catch (Exception e) {
+            client.handler().handle(e);
+        }
+        return this;
+    }
+
+    private StatsDBatch append(String aspect, double value, MetricType type, String[] tags) {
+        try {
+            final SeriesKey key = client.seriesKey(aspect, tags);
+            while (true) {
+                final int start = lines.position();
+                try {
+                    if (start > 0) {
+                        lines.put((byte) '\n');
+                    }
+                    encoder.encode(lines, key, value, type);
+                    metrics++;
+                    return this;
+                } catch (BufferOverflowException e) {
+                    lines.position(start);
+                    makeRoom(start);
+                }
+            }
+        } catch (Exception e) {
+            client.handler().handle(e);
+        }
+        return this;
+    }
+
+    /**
+     * Make room for a line which did not fit: grow the buffer, or once it has reached
+     * its largest size, send what has been recorded so far.
+     */
+    private void makeRoom(int used) {
+        if (used == 0 && lines.capacity() >= MAX_CAPACITY_BYTES) {
+            throw new BufferOverflowException();
+        }
+        if (lines.capacity() < MAX_CAPACITY_BYTES) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.min(lines.capacity() * 2, MAX_CAPACITY_BYTES));
+            lines.flip();
+            grown.put(lines);
+            lines = grown;
+        } else {
+            send();
+        }
+    }
+}
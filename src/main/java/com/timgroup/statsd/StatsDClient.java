@@ -1,5 +1,7 @@
 package com.timgroup.statsd;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Describes a client connection to a StatsD server, which may be used to post metrics
  * in the form of counters, timers, and gauges.
@@ -10,6 +12,8 @@ package com.timgroup.statsd;
  *   <li>{@link #incrementCounter} - adds one to the value of the specified named counter</li>
  *   <li>{@link #recordGaugeValue} - records the latest fixed value for the specified named gauge</li>
  *   <li>{@link #recordExecutionTime} - records an execution time in milliseconds for the specified named operation</li>
+ *   <li>{@link #recordEvent} - records an event</li>
+ *   <li>{@link #recordServiceCheckRun} - records the outcome of a service check</li>
  * </ul>
  *
  * @author Tom Denley
@@ -23,6 +27,22 @@ public interface StatsDClient {
      */
     void stop();
 
+    /**
+     * Cleanly shut down this StatsD client, spending at most the given time
+     * writing out the metrics recorded but not yet sent. By default this calls
+     * {@link #stop()} and reports nothing pending.
+     *
+     * @param timeout
+     *     the longest time to spend draining pending metrics
+     * @param unit
+     *     the unit of {@code timeout}
+     * @return how many pending metrics were flushed, and how many were abandoned
+     */
+    default DrainResult stop(long timeout, TimeUnit unit) {
+        stop();
+        return DrainResult.NOTHING_PENDING;
+    }
+
     /**
      * Adjusts the specified counter by a given delta.
      *
@@ -178,4 +198,61 @@ public interface StatsDClient {
      */
     void histogram(String aspect, long value, String... tags);
 
+    /**
+     * Binds a timer to the specified named operation, recording execution times
+     * in fractional milliseconds. The timer should be created once and kept, so
+     * that timing an operation does not encode its name every time. By default
+     * each time is passed to {@link #recordExecutionTime}, rounded to whole
+     * milliseconds.
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param tags
+     *     array of tags to be added to the data
+     * @return a timer recording into the given series
+     */
+    default StatsDTimer timer(final String aspect, final String... tags) {
+        return new StatsDTimer() {
+            @Override protected void recordMillis(double elapsedMillis) {
+                recordExecutionTime(aspect, Math.round(elapsedMillis), tags);
+            }
+        };
+    }
+
+    /**
+     * Records an event.
+     *
+     * <p>This method is a DataDog extension, and may not work with other servers.</p>
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * <p>By default the event is dropped.</p>
+     *
+     * @param event
+     *     the event to record
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    default void recordEvent(StatsDEvent event, String... tags) {
+        /* not supported unless implemented */
+    }
+
+    /**
+     * Records the outcome of a run of a service check.
+     *
+     * <p>This method is a DataDog extension, and may not work with other servers.</p>
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * <p>By default the outcome is dropped.</p>
+     *
+     * @param check
+     *     the outcome to record
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    default void recordServiceCheckRun(StatsDServiceCheck check, String... tags) {
+        /* not supported unless implemented */
+    }
+
 }
@@ -0,0 +1,79 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summarises the failures of a client over one error reporting interval, passed to
+ * its {@link StatsDClientErrorHandler} in place of the individual exceptions. See
+ * {@link NonBlockingStatsDClientBuilder#errorReportInterval(long, TimeUnit)}.
+ *
+ * <p>The first exception of the interval, if any, is attached as the cause. The
+ * summary itself carries no stack trace.</p>
+ *
+ */
+public final class StatsDClientErrorSummary extends Exception {
+
+    private static final long serialVersionUID = -2504325839311734626L;
+
+    /**
+     * The kinds of failure counted by a summary.
+     */
+    public enum Category {
+        /** a packet was only partly written to the socket */
+        SHORT_SEND("short send"),
+        /** the server's port was reported unreachable */
+        UNREACHABLE("unreachable"),
+        /** the server's hostname could not be resolved */
+        UNRESOLVED("unresolved"),
+        /** any other I/O failure */
+        IO("i/o"),
+        /** any other failure, such as a metric which could not be encoded */
+        OTHER("other");
+
+        private final String description;
+
+        private Category(String description) {
+            this.description = description;
+        }
+    }
+
+    private final long[] counts;
+
+    StatsDClientErrorSummary(long[] counts, long intervalNanos, Exception first) {
+        super(message(counts, intervalNanos, first), first, false, false);
+        this.counts = counts;
+    }
+
+    /**
+     * @return the number of failures of the given category in the interval
+     */
+    public long getCount(Category category) {
+        return counts[category.ordinal()];
+    }
+
+    /**
+     * @return the number of failures of every category in the interval
+     */
+    public long getTotal() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static String message(long[] counts, long intervalNanos, Exception first) {
+        final StringBuilder result = new StringBuilder("StatsD client failures in the last ")
+                .append(TimeUnit.NANOSECONDS.toMillis(intervalNanos)).append("ms:");
+        for (Category category : Category.values()) {
+            if (counts[category.ordinal()] > 0) {
+                result.append(' ').append(counts[category.ordinal()]).append(' ').append(category.description).append(',');
+            }
+        }
+        result.setLength(result.length() - 1);
+        if (first != null) {
+            result.append(" (first: ").append(first).append(')');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package com.timgroup.statsd;
+
+/**
+ * An event, such as a deployment or a failover, to be recorded with
+ * {@link StatsDClient#recordEvent}. Events are a DataDog extension.
+ *
+ * <p>Instances are immutable, and are built with a {@link Builder}:</p>
+ * <pre>
+ *   StatsDEvent deployed = StatsDEvent.builder()
+ *       .title("Deployed")
+ *       .text("Version 1.2.3 deployed to production")
+ *       .alertType(StatsDEvent.AlertType.SUCCESS)
+ *       .build();
+ * </pre>
+ *
+ * <p>An event which would not fit in a single packet has its text, and if need
+ * be its title, truncated.</p>
+ *
+ */
+public final class StatsDEvent {
+
+    /**
+     * The kind of alert an event raises.
+     */
+    public enum AlertType {
+        INFO("info"), WARNING("warning"), ERROR("error"), SUCCESS("success");
+
+        final String symbol;
+
+        private AlertType(String symbol) {
+            this.symbol = symbol;
+        }
+    }
+
+    final String title;
+    final String text;
+    final long timestampMs;
+    final String hostname;
+    final String aggregationKey;
+    final boolean lowPriority;
+    final String sourceTypeName;
+    final AlertType alertType;
+
+    private StatsDEvent(Builder builder) {
+        this.title = builder.title;
+        this.text = builder.text;
+        this.timestampMs = builder.timestampMs;
+        this.hostname = builder.hostname;
+        this.aggregationKey = builder.aggregationKey;
+        this.lowPriority = builder.lowPriority;
+        this.sourceTypeName = builder.sourceTypeName;
+        this.alertType = builder.alertType;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StatsDEvent[title=%s, alertType=%s]", title, alertType);
+    }
+
+    /**
+     * Collects the fields of a {@link StatsDEvent}. Only the title is required.
+     */
+    public static final class Builder {
+        private String title;
+        private String text = "";
+        private long timestampMs;
+        private String hostname;
+        private String aggregationKey;
+        private boolean lowPriority;
+        private String sourceTypeName;
+        private AlertType alertType;
+
+        private Builder() { }
+
+        public Builder title(String title) {
+            this.title = title;
+            return this;
+        }
+
+        public Builder text(String text) {
+            this.text = text == null ? "" : text;
+            return this;
+        }
+
+        /**
+         * @param timestampMs
+         *     when the event happened, in milliseconds since the epoch; by default
+         *     the server uses the time it receives the event
+         */
+        public Builder timestamp(long timestampMs) {
+            this.timestampMs = timestampMs;
+            return this;
+        }
+
+        public Builder hostname(String hostname) {
+            this.hostname = hostname;
+            return this;
+        }
+
+        /**
+         * @param aggregationKey
+         *     a key under which the server groups related events
+         */
+        public Builder aggregationKey(String aggregationKey) {
+            this.aggregationKey = aggregationKey;
+            return this;
+        }
+
+        public Builder lowPriority(boolean lowPriority) {
+            this.lowPriority = lowPriority;
+            return this;
+        }
+
+        public Builder sourceTypeName(String sourceTypeName) {
+            this.sourceTypeName = sourceTypeName;
+            return this;
+        }
+
+        public Builder alertType(AlertType alertType) {
+            this.alertType = alertType;
+            return this;
+        }
+
+        public StatsDEvent build() {
+            if (title == null || title.isEmpty()) {
+                throw new IllegalArgumentException("An event must have a title");
+            }
+            return new StatsDEvent(this);
+        }
+    }
+}
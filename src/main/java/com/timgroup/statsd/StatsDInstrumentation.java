@@ -0,0 +1,189 @@
+package com.timgroup.statsd;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the methods of an object marked with {@link Timed} or {@link Counted},
+ * by wrapping the object in a proxy for one of its interfaces:
+ * <pre>
+ *   public interface Repository {
+ *       &#64;Timed(value = "repository.find", tags = "store=orders")
+ *       Order find(long id);
+ *   }
+ *
+ *   Repository repository = StatsDInstrumentation.instrument(Repository.class, new JdbcRepository(), statsd);
+ * </pre>
+ *
+ * <p>Annotations are read from the interface method, or else from the method of the
+ * object which implements it. Every annotated method is bound to its series once,
+ * when the proxy is created, so that a call does no string work; a timed call
+ * records the {@link System#nanoTime()} elapsed through a {@link StatsDTimer}.
+ * Methods without annotations are passed straight through.</p>
+ *
+ * <p>Each method is also bound to a {@link MethodHandle} on the object when the proxy
+ * is created, so that calls are not passed through reflection. The proxy itself still
+ * boxes the arguments of every call; code on a hot path is better off holding a
+ * {@link StatsDTimer} directly. A proxy is equal only to itself.</p>
+ *
+ */
+public final class StatsDInstrumentation {
+
+    private StatsDInstrumentation() { }
+
+    /**
+     * @param type
+     *     the interface to proxy
+     * @param target
+     *     the object to pass calls to
+     * @param client
+     *     the client to record through
+     * @return a proxy implementing {@code type}, recording the annotated methods of {@code target}
+     * @throws IllegalArgumentException
+     *     if {@code type} is not an interface, or one of its methods cannot be called
+     *     from this class
+     */
+    public static <T> T instrument(Class<T> type, T target, StatsDClient client) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException(type.getName() + " is not an interface");
+        }
+        final Map<Method, Binding> bindings = new HashMap<Method, Binding>();
+        for (Method method : type.getMethods()) {
+            bindings.put(method, bind(method, implementation(target, method), handle(method, target), client));
+        }
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new RecordingHandler(target, bindings)));
+    }
+
+    /**
+     * @return a handle taking the arguments of the method as an array, or null if the
+     *     method is not accessible to a handle and must be called through reflection,
+     *     in which case it has been made accessible
+     * @throws IllegalArgumentException
+     *     if the method cannot be made accessible either
+     */
+    private static MethodHandle handle(Method method, Object target) {
+        try {
+            return MethodHandles.publicLookup().unreflect(method)
+                    .bindTo(target)
+                    .asSpreader(Object[].class, method.getParameterCount())
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        } catch (IllegalAccessException e) {
+            try {
+                method.setAccessible(true);
+            } catch (RuntimeException denied) {
+                throw new IllegalArgumentException(method + " is not accessible to instrument", denied);
+            }
+            return null;
+        }
+    }
+
+    private static Method implementation(Object target, Method method) {
+        try {
+            return target.getClass().getMethod(method.getName(), method.getParameterTypes());
+        } catch (NoSuchMethodException e) {
+            return method;
+        }
+    }
+
+    private static Binding bind(Method method, Method implementation, MethodHandle handle, StatsDClient client) {
+        Timed timed = method.getAnnotation(Timed.class);
+        if (timed == null) {
+            timed = implementation.getAnnotation(Timed.class);
+        }
+        Counted counted = method.getAnnotation(Counted.class);
+        if (counted == null) {
+            counted = implementation.getAnnotation(Counted.class);
+        }
+        return new Binding(
+                handle,
+                timed == null ? null : client.timer(timed.value(), timed.tags()),
+                counted == null ? null : counted.value(),
+                counted == null ? null : counted.tags(),
+                client);
+    }
+
+    /**
+     * The handle a method calls and the series it records into, resolved when the proxy is created.
+     */
+    private static final class Binding {
+        final MethodHandle handle;
+        final StatsDTimer timer;
+        final String countAspect;
+        final String[] countTags;
+        final StatsDClient client;
+
+        Binding(MethodHandle handle, StatsDTimer timer, String countAspect, String[] countTags, StatsDClient client) {
+            this.handle = handle;
+            this.timer = timer;
+            this.countAspect = countAspect;
+            this.countTags = countTags;
+            this.client = client;
+        }
+    }
+
+    private static final class RecordingHandler implements InvocationHandler {
+        private final Object target;
+        private final Map<Method, Binding> bindings;
+
+        RecordingHandler(Object target, Map<Method, Binding> bindings) {
+            this.target = target;
+            this.bindings = bindings;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeOnProxy(proxy, method, args);
+            }
+            final Binding binding = bindings.get(method);
+            if (binding.timer == null && binding.countAspect == null) {
+                return call(binding, method, args);
+            }
+            final long start = binding.timer == null ? 0 : binding.timer.start();
+            try {
+                return call(binding, method, args);
+            } finally {
+                if (binding.timer != null) {
+                    binding.timer.stop(start);
+                }
+                if (binding.countAspect != null) {
+                    binding.client.count(binding.countAspect, 1, binding.countTags);
+                }
+            }
+        }
+
+        private Object call(Binding binding, Method method, Object[] args) throws Throwable {
+            if (binding.handle != null) {
+                return (Object) binding.handle.invokeExact(args);
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Answers {@code equals}, {@code hashCode} and {@code toString} for the proxy,
+         * rather than passing them to the object it wraps.
+         */
+        private Object invokeOnProxy(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "instrumented " + target;
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.timgroup.statsd;
+
+/**
+ * Parses StatsD lines of the form {@code name:value|type[|@rate][|#tags]} straight
+ * out of a receive buffer into a {@link SeriesTable}, without allocating.
+ *
+ * <p>The name is taken as it stands, so that InfluxDB style tags, as in
+ * {@code aspect,tag=v:1|c}, tell series apart. DogStatsD style tags after
+ * {@code |#} are ignored. Counters are scaled up by their sample rate.</p>
+ *
+ * <p>Owned by one receiver thread. The line counts are written by that thread alone
+ * and may be read from any other without locking.</p>
+ */
+final class StatsDLineParser {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    private volatile long lines;
+    private volatile long rejected;
+
+    /* the number parsed by the last call to parseNumber */
+    private long longValue;
+    private double doubleValue;
+    private boolean integral;
+
+    long lines() {
+        return lines;
+    }
+
+    long rejected() {
+        return rejected;
+    }
+
+    /**
+     * Count a line which was dropped before it could be parsed.
+     */
+    void reject() {
+        lines++;
+        rejected++;
+    }
+
+    /**
+     * Record every newline separated line between {@code start} and {@code end}
+     * into the given table. Lines which cannot be parsed are counted and skipped.
+     */
+    void parse(byte[] data, int start, int end, SeriesTable table) {
+        int lineCount = 0;
+        int rejectedCount = 0;
+        int lineStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i < end && data[i] != '\n') {
+                continue;
+            }
+            int lineEnd = i;
+            if (lineEnd > lineStart && data[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd > lineStart) {
+                lineCount++;
+                if (!parseLine(data, lineStart, lineEnd, table)) {
+                    rejectedCount++;
+                }
+            }
+            lineStart = i + 1;
+        }
+        lines += lineCount;
+        rejected += rejectedCount;
+    }
+
+    private boolean parseLine(byte[] data, int start, int end, SeriesTable table) {
+        final int typeStart = indexOf(data, start, end, (byte) '|') + 1;
+        if (typeStart <= 0) {
+            return false;
+        }
+        final int colon = lastIndexOf(data, start, typeStart - 1, (byte) ':');
+        if (colon <= start) {
+            return false;
+        }
+        final int typeEnd = indexOf(data, typeStart, end, (byte) '|');
+        final MetricType type = type(data, typeStart, typeEnd < 0 ? end : typeEnd);
+        if (type == null || !parseNumber(data, colon + 1, typeStart - 1)) {
+            return false;
+        }
+        final double value = doubleValue;
+        final long count = longValue;
+        final boolean exact = integral;
+
+        double rate = 1.0;
+        for (int section = typeEnd; section >= 0; section = indexOf(data, section + 1, end, (byte) '|')) {
+            if (section + 1 < end && data[section + 1] == '@') {
+                final int sectionEnd = indexOf(data, section + 1, end, (byte) '|');
+                if (!parseNumber(data, section + 2, sectionEnd < 0 ? end : sectionEnd)
+                        || doubleValue <= 0 || doubleValue > 1) {
+                    return false;
+                }
+                rate = doubleValue;
+            }
+        }
+
+        final int slot = table.slot(data, start, colon - start, SeriesTable.hash(data, start, colon - start), type);
+        switch (type) {
+            case COUNTER:
+                table.count(slot, exact && rate == 1.0 ? count : Math.round(value / rate));
+                break;
+            case GAUGE:
+                table.gauge(slot, value);
+                break;
+            default:
+                table.sample(slot, value);
+        }
+        return true;
+    }
+
+    private static MetricType type(byte[] data, int start, int end) {
+        final int length = end - start;
+        if (length == 1) {
+            switch (data[start]) {
+                case 'c':
+                    return MetricType.COUNTER;
+                case 'g':
+                    return MetricType.GAUGE;
+                case 'h':
+                    return MetricType.HISTOGRAM;
+                default:
+                    return null;
+            }
+        }
+        if (length == 2 && data[start] == 'm' && data[start + 1] == 's') {
+            return MetricType.TIMER;
+        }
+        return null;
+    }
+
+    /**
+     * Parse a decimal number, with an optional sign, fraction and exponent, into
+     * {@link #doubleValue}, and also into {@link #longValue} if it is a plain integer.
+     *
+     * @return false if the bytes are not a finite number
+     */
+    private boolean parseNumber(byte[] data, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int mantissaDigits = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean fraction = false;
+        boolean overflow = false;
+        for (; i < end; i++) {
+            final byte b = data[i];
+            if (b == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            if (b < '0' || b > '9') {
+                break;
+            }
+            digits++;
+            if (mantissaDigits < MAX_MANTISSA_DIGITS) {
+                if (mantissa > 0 || b != '0') {
+                    mantissaDigits++;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (fraction) {
+                    scale--;
+                }
+            } else {
+                overflow = true;
+                if (!fraction) {
+                    scale++;
+                }
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < end) {
+            if ((data[i] != 'e' && data[i] != 'E') || i + 1 == end) {
+                return false;
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (data[i] == '-' || data[i] == '+') {
+                negativeExponent = data[i] == '-';
+                i++;
+            }
+            if (i == end) {
+                return false;
+            }
+            int exponent = 0;
+            for (; i < end; i++) {
+                if (data[i] < '0' || data[i] > '9') {
+                    return false;
+                }
+                exponent = Math.min(exponent * 10 + (data[i] - '0'), 1000);
+            }
+            scale += negativeExponent ? -exponent : exponent;
+            fraction = true;
+        }
+
+        double value = mantissa;
+        if (scale < 0) {
+            value = -scale < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-scale] : value / Math.pow(10, -scale);
+        } else if (scale > 0) {
+            value = scale < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[scale] : value * Math.pow(10, scale);
+        }
+        if (Double.isInfinite(value)) {
+            return false;
+        }
+        doubleValue = negative ? -value : value;
+        integral = !fraction && !overflow;
+        longValue = negative ? -mantissa : mantissa;
+        return true;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, int start, int end, byte b) {
+        for (int i = end - 1; i >= start; i--) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,426 @@
+package com.timgroup.statsd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An embedded StatsD server, which aggregates the lines sent by a
+ * {@link NonBlockingStatsDClient} and hands each interval's aggregates to an
+ * {@link AggregateSink}. It may run in-process, as a sidecar, or as the stand-in
+ * server for tests.
+ *
+ * <p>Lines are received over UDP, one or more per datagram, and over TCP, one per
+ * newline. Each line is parsed in place, without allocating, into the
+ * {@link SeriesTable} of the thread which received it; the tables are merged and
+ * passed to the sink at the end of each interval. Per interval:</p>
+ * <ul>
+ *   <li>counters are summed, scaled up by their sample rates</li>
+ *   <li>gauges keep their latest value</li>
+ *   <li>timers and histograms keep their count, sum, minimum and maximum</li>
+ * </ul>
+ *
+ * <p>Several UDP receiver threads each bind their own socket to the port with
+ * {@code SO_REUSEPORT} where the platform supports it, so that the kernel spreads
+ * datagrams from different senders across them; otherwise they share one socket.
+ * TCP connections are served by a single selector thread.</p>
+ *
+ * <p>Recording into a series which has been seen before allocates nothing, so
+ * each series is held between intervals; one which goes unrecorded for
+ * {@value #MAX_IDLE_FLUSHES} flushes in a row is forgotten, and starts afresh if
+ * it is received again.</p>
+ *
+ */
+public final class StatsDServer {
+
+    private static final int RECEIVE_BUFFER_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_DATAGRAM_BYTES = 64 * 1024;
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    /* how many flushes a series may go unrecorded before it is forgotten */
+    private static final int MAX_IDLE_FLUSHES = 30;
+
+    private final AggregateSink sink;
+    private final StatsDClientErrorHandler handler;
+    private final List<DatagramChannel> udpChannels = new ArrayList<DatagramChannel>();
+    private final ServerSocketChannel tcpChannel;
+    private final Selector selector;
+    private final List<Receiver> receivers = new ArrayList<Receiver>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final SeriesTable merged = new SeriesTable();
+    private final ScheduledExecutorService executor;
+    private volatile boolean stopping;
+
+    /**
+     * Start a server which flushes every {@code flushInterval}, receiving on all
+     * interfaces. Either port may be 0 to pick a free port, which is then available
+     * from {@link #getUdpPort} or {@link #getTcpPort}, or negative to not listen
+     * for that protocol at all.
+     *
+     * @param udpPort
+     *     the UDP port to receive datagrams on
+     * @param tcpPort
+     *     the TCP port to accept connections on
+     * @param udpReceivers
+     *     the number of threads receiving datagrams
+     * @param flushInterval
+     *     how often to pass the aggregates to the sink, or 0 to only do so when
+     *     {@link #flush} is called
+     * @param sink
+     *     receives the aggregates of each interval
+     * @param handler
+     *     handler to use when an exception occurs while receiving or flushing
+     * @throws StatsDClientException
+     *     if a port could not be bound
+     */
+    public StatsDServer(int udpPort, int tcpPort, int udpReceivers, long flushInterval, TimeUnit unit,
+            AggregateSink sink, StatsDClientErrorHandler handler) throws StatsDClientException {
+        if (udpReceivers < 1) {
+            throw new IllegalArgumentException("At least one UDP receiver is required");
+        }
+        this.sink = sink;
+        this.handler = handler;
+        ServerSocketChannel server = null;
+        Selector streams = null;
+        try {
+            if (udpPort >= 0) {
+                openUdp(udpPort, udpReceivers);
+            }
+            if (tcpPort >= 0) {
+                server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(tcpPort));
+                server.configureBlocking(false);
+                streams = Selector.open();
+                server.register(streams, SelectionKey.OP_ACCEPT);
+            }
+        } catch (Exception e) {
+            for (Closeable closeable : new Closeable[] { server, streams }) {
+                if (closeable != null) {
+                    close(closeable);
+                }
+            }
+            closeUdp();
+            throw new StatsDClientException("Failed to start StatsD server", e);
+        }
+        this.tcpChannel = server;
+        this.selector = streams;
+
+        for (int i = 0; !udpChannels.isEmpty() && i < udpReceivers; i++) {
+            final DatagramChannel channel = udpChannels.get(Math.min(i, udpChannels.size() - 1));
+            final Receiver receiver = new Receiver();
+            receivers.add(receiver);
+            start("StatsD-server-udp-" + i, new Runnable() {
+                @Override public void run() {
+                    receiveDatagrams(channel, receiver);
+                }
+            });
+        }
+        if (selector != null) {
+            final Receiver receiver = new Receiver();
+            receivers.add(receiver);
+            start("StatsD-server-tcp", new Runnable() {
+                @Override public void run() {
+                    receiveStreams(receiver);
+                }
+            });
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+                NonBlockingStatsDClient.threadFactory("StatsD-server-flush-"));
+        if (flushInterval > 0) {
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, unit);
+        }
+    }
+
+    /**
+     * @return the UDP port the server receives on, or -1 if it does not listen for UDP
+     */
+    public int getUdpPort() {
+        return udpChannels.isEmpty() ? -1 : udpChannels.get(0).socket().getLocalPort();
+    }
+
+    /**
+     * @return the TCP port the server accepts connections on, or -1 if it does not listen for TCP
+     */
+    public int getTcpPort() {
+        return tcpChannel == null ? -1 : tcpChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the number of lines received so far, including those rejected
+     */
+    public long getLinesReceived() {
+        long lines = 0;
+        for (Receiver receiver : receivers) {
+            lines += receiver.parser.lines();
+        }
+        return lines;
+    }
+
+    /**
+     * @return an estimate of the bytes of heap held for the series received so far;
+     *     series unrecorded for {@value #MAX_IDLE_FLUSHES} flushes in a row are forgotten
+     */
+    public synchronized long getRetainedSeriesBytes() {
+        long bytes = merged.retainedBytes();
+        for (Receiver receiver : receivers) {
+            synchronized (receiver.table) {
+                bytes += receiver.table.retainedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of lines received so far which could not be parsed
+     */
+    public long getLinesRejected() {
+        long rejected = 0;
+        for (Receiver receiver : receivers) {
+            rejected += receiver.parser.rejected();
+        }
+        return rejected;
+    }
+
+    /**
+     * Pass everything received since the last flush to the sink, and start a new
+     * interval. Flushes never overlap.
+     */
+    public synchronized void flush() {
+        for (Receiver receiver : receivers) {
+            synchronized (receiver.table) {
+                merged.mergeFrom(receiver.table);
+                receiver.table.reset(MAX_IDLE_FLUSHES);
+            }
+        }
+        try {
+            sink.begin(System.currentTimeMillis());
+            merged.emit(sink);
+            sink.end();
+        } catch (Exception e) {
+            handler.handle(e);
+        } finally {
+            merged.reset(MAX_IDLE_FLUSHES);
+        }
+    }
+
+    /**
+     * Stop receiving, wait for the receiver threads to finish, and pass whatever
+     * was received since the last flush to the sink.
+     */
+    public void stop() {
+        stopping = true;
+        executor.shutdown();
+        closeUdp();
+        if (selector != null) {
+            selector.wakeup();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            }
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void openUdp(int port, int receivers) throws IOException {
+        final DatagramChannel first = openDatagramChannel(port, receivers > 1);
+        udpChannels.add(first);
+        if (!first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            return;
+        }
+        for (int i = 1; i < receivers; i++) {
+            udpChannels.add(openDatagramChannel(first.socket().getLocalPort(), true));
+        }
+    }
+
+    private static DatagramChannel openDatagramChannel(int port, boolean reusePort) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+            channel.bind(new InetSocketAddress(port));
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void start(String name, Runnable task) {
+        final Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void receiveDatagrams(DatagramChannel channel, Receiver receiver) {
+        final ByteBuffer packet = ByteBuffer.allocate(MAX_DATAGRAM_BYTES);
+        while (!stopping) {
+            try {
+                packet.clear();
+                channel.receive(packet);
+                synchronized (receiver.table) {
+                    receiver.parser.parse(packet.array(), 0, packet.position(), receiver.table);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (Exception e) {
+                if (!stopping) {
+                    handler.handle(e);
+                }
+            }
+        }
+    }
+
+    private void receiveStreams(Receiver receiver) {
+        try {
+            while (!stopping) {
+                try {
+                    selector.select();
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key, receiver);
+                        }
+                    }
+                } catch (IOException e) {
+                    handler.handle(e);
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key.channel());
+            }
+            close(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel connection = tcpChannel.accept();
+        if (connection != null) {
+            connection.configureBlocking(false);
+            connection.register(selector, SelectionKey.OP_READ, new Stream());
+        }
+    }
+
+    /**
+     * Parse the complete lines read from a connection, keeping any partial line
+     * at the end of its buffer for the next read. A line longer than the buffer
+     * is counted as rejected and discarded through its newline.
+     */
+    private void read(SelectionKey key, Receiver receiver) {
+        final SocketChannel connection = (SocketChannel) key.channel();
+        final Stream stream = (Stream) key.attachment();
+        final ByteBuffer buffer = stream.buffer;
+        int read;
+        try {
+            read = connection.read(buffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        final byte[] data = buffer.array();
+        if (stream.discarding) {
+            int newline = 0;
+            while (newline < buffer.position() && data[newline] != '\n') {
+                newline++;
+            }
+            if (newline < buffer.position()) {
+                stream.discarding = false;
+                buffer.flip().position(newline + 1);
+                buffer.compact();
+            } else {
+                buffer.clear();
+            }
+        }
+        if (!stream.discarding) {
+            int lastNewline = buffer.position() - 1;
+            while (lastNewline >= 0 && data[lastNewline] != '\n') {
+                lastNewline--;
+            }
+            if (read < 0) {
+                lastNewline = buffer.position();
+            } else if (lastNewline < 0 && !buffer.hasRemaining()) {
+                /* the start of a line longer than the buffer, which can never be parsed */
+                synchronized (receiver.table) {
+                    receiver.parser.reject();
+                }
+                stream.discarding = true;
+                buffer.clear();
+            }
+            if (lastNewline >= 0) {
+                synchronized (receiver.table) {
+                    receiver.parser.parse(data, 0, lastNewline, receiver.table);
+                }
+                buffer.flip().position(Math.min(lastNewline + 1, buffer.limit()));
+                buffer.compact();
+            }
+        }
+        if (read < 0) {
+            key.cancel();
+            try {
+                connection.close();
+            } catch (IOException e) {
+                handler.handle(e);
+            }
+        }
+    }
+
+    private void closeUdp() {
+        for (DatagramChannel channel : udpChannels) {
+            close(channel);
+        }
+    }
+
+    private void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    /**
+     * The table and parser of one receiver thread. The table is locked by its thread
+     * for each datagram or read, and by {@link #flush} to take its contents.
+     */
+    private static final class Receiver {
+        final SeriesTable table = new SeriesTable();
+        final StatsDLineParser parser = new StatsDLineParser();
+    }
+
+    /**
+     * The read buffer of one TCP connection, and whether the rest of an overlong
+     * line is still to be discarded from it.
+     */
+    private static final class Stream {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE_BYTES);
+        boolean discarding;
+    }
+}
@@ -0,0 +1,117 @@
+package com.timgroup.statsd;
+
+/**
+ * The outcome of a run of a service check, to be recorded with
+ * {@link StatsDClient#recordServiceCheckRun}. Service checks are a DataDog extension.
+ *
+ * <p>Instances are immutable, and are built with a {@link Builder}:</p>
+ * <pre>
+ *   StatsDServiceCheck check = StatsDServiceCheck.builder()
+ *       .name("database.reachable")
+ *       .status(StatsDServiceCheck.Status.CRITICAL)
+ *       .message("Connection refused")
+ *       .build();
+ * </pre>
+ *
+ * <p>A check which would not fit in a single packet has its message truncated.</p>
+ *
+ */
+public final class StatsDServiceCheck {
+
+    /**
+     * The status reported by a run of a service check.
+     */
+    public enum Status {
+        OK(0), WARNING(1), CRITICAL(2), UNKNOWN(3);
+
+        final int value;
+
+        private Status(int value) {
+            this.value = value;
+        }
+    }
+
+    final String name;
+    final Status status;
+    final long timestampMs;
+    final String hostname;
+    final String message;
+
+    private StatsDServiceCheck(Builder builder) {
+        this.name = builder.name;
+        this.status = builder.status;
+        this.timestampMs = builder.timestampMs;
+        this.hostname = builder.hostname;
+        this.message = builder.message;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StatsDServiceCheck[name=%s, status=%s]", name, status);
+    }
+
+    /**
+     * Collects the fields of a {@link StatsDServiceCheck}. Only the name and status are required.
+     */
+    public static final class Builder {
+        private String name;
+        private Status status;
+        private long timestampMs;
+        private String hostname;
+        private String message;
+
+        private Builder() { }
+
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder status(Status status) {
+            this.status = status;
+            return this;
+        }
+
+        /**
+         * @param timestampMs
+         *     when the check ran, in milliseconds since the epoch; by default the
+         *     server uses the time it receives the check
+         */
+        public Builder timestamp(long timestampMs) {
+            this.timestampMs = timestampMs;
+            return this;
+        }
+
+        public Builder hostname(String hostname) {
+            this.hostname = hostname;
+            return this;
+        }
+
+        public Builder message(String message) {
+            this.message = message;
+            return this;
+        }
+
+        public StatsDServiceCheck build() {
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("A service check must have a name");
+            }
+            if (status == null) {
+                throw new IllegalArgumentException("A service check must have a status");
+            }
+            return new StatsDServiceCheck(this);
+        }
+    }
+}
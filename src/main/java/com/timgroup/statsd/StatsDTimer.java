@@ -0,0 +1,119 @@
+package com.timgroup.statsd;
+
+/**
+ * Times an operation into a series bound in advance, see {@link StatsDClient#timer}.
+ *
+ * <p>Times are measured with {@link System#nanoTime()} and recorded as fractional
+ * milliseconds, so that operations of a few microseconds are timed meaningfully.
+ * The series is encoded once, when the timer is created, so that stopping a timer
+ * does not build any strings:</p>
+ * <pre>
+ *   private static final StatsDTimer LOOKUP = statsd.timer("cache.lookup", "tier=local");
+ *
+ *   long start = LOOKUP.start();
+ *   ...
+ *   LOOKUP.stop(start);
+ * </pre>
+ *
+ * <p>Alternatively, a {@link Scope} may be kept by a thread and reused for every
+ * operation it times:</p>
+ * <pre>
+ *   StatsDTimer.Scope scope = LOOKUP.scope();
+ *   ...
+ *   try (StatsDTimer.Scope timing = scope.start()) {
+ *       ...
+ *   }
+ * </pre>
+ *
+ * <p>Timers are thread-safe; scopes are not.</p>
+ *
+ */
+public abstract class StatsDTimer {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    /**
+     * @return the start time of an operation, to be passed to {@link #stop(long)}
+     */
+    public final long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since the given start time.
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * @param startNanos
+     *     the value returned by {@link #start()}
+     * @return the elapsed time in nanoseconds
+     */
+    public final long stop(long startNanos) {
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        recordNanos(elapsedNanos);
+        return elapsedNanos;
+    }
+
+    /**
+     * Records the given time in nanoseconds, as fractional milliseconds.
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * @param elapsedNanos
+     *     the time in nanoseconds
+     */
+    public final void recordNanos(long elapsedNanos) {
+        recordElapsedNanos(elapsedNanos);
+    }
+
+    /**
+     * Records the given time in fractional milliseconds into the bound series.
+     */
+    protected abstract void recordMillis(double elapsedMillis);
+
+    /**
+     * Records the given time in nanoseconds into the bound series. Clients which can
+     * carry the time as it was measured override this, so that no floating point value
+     * is formatted when a timer is stopped.
+     */
+    protected void recordElapsedNanos(long elapsedNanos) {
+        recordMillis(elapsedNanos / NANOS_PER_MILLI);
+    }
+
+    /**
+     * @return a new scope for this timer, to be reused by a single thread
+     */
+    public final Scope scope() {
+        return new Scope(this);
+    }
+
+    /**
+     * A reusable scope which records the time between {@link #start()} and
+     * {@link #close()}. A scope may only be used by one thread at a time, and
+     * cannot be nested within itself.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final StatsDTimer timer;
+        private long startNanos;
+
+        Scope(StatsDTimer timer) {
+            this.timer = timer;
+        }
+
+        /**
+         * @return this scope, having noted the start time
+         */
+        public Scope start() {
+            startNanos = System.nanoTime();
+            return this;
+        }
+
+        /**
+         * Records the time elapsed since {@link #start()}.
+         */
+        @Override
+        public void close() {
+            timer.stop(startNanos);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A stand-in StatsD server for load tests, which counts what it receives rather
+ * than storing it. A single thread receives into a direct buffer and scans each
+ * packet in place; the counters are written by that thread alone and may be read
+ * from any other without locking.
+ *
+ * <p>A line whose value is a {@link System#nanoTime()} reading, as sent by
+ * {@link LoadHarness}, also records its delivery latency.</p>
+ */
+final class CountingStatsDServer {
+
+    private static final int RECEIVE_BUFFER_BYTES = 8 * 1024 * 1024;
+    private static final long MAX_LATENCY_NANOS = 60L * 1000 * 1000 * 1000;
+
+    private final DatagramChannel channel;
+    private final Thread thread;
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(64 * 1024);
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private volatile long packets;
+    private volatile long bytes;
+    private volatile long lines;
+
+    CountingStatsDServer(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+        channel.bind(new InetSocketAddress(port));
+        thread = new Thread(new Runnable() {
+            @Override public void run() {
+                receive();
+            }
+        }, "CountingStatsDServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    long packets() {
+        return packets;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    long lines() {
+        return lines;
+    }
+
+    LatencyHistogram latencies() {
+        return latencies;
+    }
+
+    /**
+     * Wait until at least the given number of lines have arrived, or nothing has
+     * arrived for the given quiet period.
+     */
+    void awaitLines(long expected, long quietMillis) throws InterruptedException {
+        long seen = lines;
+        long lastChange = System.currentTimeMillis();
+        while (seen < expected && System.currentTimeMillis() - lastChange < quietMillis) {
+            Thread.sleep(10L);
+            if (lines != seen) {
+                seen = lines;
+                lastChange = System.currentTimeMillis();
+            }
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+            thread.join();
+        } catch (Exception e) {
+        }
+    }
+
+    private void receive() {
+        while (channel.isOpen()) {
+            try {
+                packet.clear();
+                channel.receive(packet);
+                final long now = System.nanoTime();
+                packet.flip();
+                packets++;
+                bytes += packet.remaining();
+                scan(now);
+            } catch (IOException e) {
+                /* closed */
+            }
+        }
+    }
+
+    /**
+     * Count the lines of the received packet, and take the value of each as a send time.
+     */
+    private void scan(long now) {
+        int lineCount = 0;
+        int valueStart = -1;
+        final int limit = packet.limit();
+        for (int i = 0; i <= limit; i++) {
+            final byte b = i < limit ? packet.get(i) : (byte) '\n';
+            if (b == ':') {
+                valueStart = i + 1;
+            } else if (b == '\n') {
+                lineCount++;
+                valueStart = -1;
+            } else if (b == '|' && valueStart >= 0) {
+                final long latency = now - parseLong(valueStart, i);
+                if (latency >= 0 && latency < MAX_LATENCY_NANOS) {
+                    latencies.record(latency);
+                }
+                valueStart = -1;
+            }
+        }
+        lines += lineCount;
+    }
+
+    private long parseLong(int start, int end) {
+        final boolean negative = packet.get(start) == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            final int digit = packet.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * A log-linear histogram of non-negative values, precise to within about three
+     * percent, written by one thread and readable from any other.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private volatile long total;
+        private volatile long max;
+
+        void record(long value) {
+            final int index = index(value);
+            counts.lazySet(index, counts.get(index) + 1);
+            total++;
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        long count() {
+            return total;
+        }
+
+        long max() {
+            return max;
+        }
+
+        /**
+         * @return the lower bound of the bucket holding the given percentile, or 0 if nothing was recorded
+         */
+        long percentile(double percentile) {
+            final long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) {
+                    return valueOf(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long valueOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            final int shift = index / SUB_BUCKETS - 1;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        }
+    }
+}
@@ -12,10 +12,11 @@ import java.util.List;
 final class DummyStatsDServer {
     private final List<String> messagesReceived = new ArrayList<String>();
     private final DatagramSocket server;
+    private final Thread thread;
 
     public DummyStatsDServer(int port) throws SocketException {
         server = new DatagramSocket(port);
-        Thread thread = new Thread(new Runnable() {
+        thread = new Thread(new Runnable() {
             @Override
             public void run() {
                 while(!server.isClosed()) {
@@ -49,6 +50,11 @@ final class DummyStatsDServer {
 
     public void close() {
         server.close();
+        try {
+            /* the port is only released once the receiving thread gives up the socket */
+            thread.join();
+        } catch (InterruptedException e) {
+        }
     }
 
 }
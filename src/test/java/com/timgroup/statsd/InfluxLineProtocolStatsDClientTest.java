@@ -0,0 +1,211 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class InfluxLineProtocolStatsDClientTest {
+
+    private static final int INFLUX_SERVER_PORT = 17256;
+    private final InfluxLineProtocolStatsDClient client = new InfluxLineProtocolStatsDClient(
+            "my.prefix", new String[] {"app=bar"}, LineProtocolTransports.udp("localhost", INFLUX_SERVER_PORT),
+            1, TimeUnit.HOURS, null);
+    private DummyStatsDServer server;
+
+    @Before
+    public void start() throws SocketException {
+        server = new DummyStatsDServer(INFLUX_SERVER_PORT);
+    }
+
+    @After
+    public void stop() throws Exception {
+        client.stop();
+        server.close();
+    }
+
+    @Test(timeout=5000L) public void
+    aggregates_counters() throws Exception {
+
+        client.count("mycount", 24, "foo=bar");
+        client.incrementCounter("mycount", "foo=bar");
+        client.flush(System.currentTimeMillis(), Long.MAX_VALUE, 0);
+        server.waitForMessage();
+
+        assertThat(withoutTimestamps(server.messagesReceived()), contains("my.prefix.mycount,app=bar,foo=bar count=25i"));
+    }
+
+    @Test(timeout=5000L) public void
+    aggregates_timers() throws Exception {
+
+        client.recordExecutionTime("mytime", 10);
+        client.recordExecutionTime("mytime", 30);
+        client.flush(System.currentTimeMillis(), Long.MAX_VALUE, 0);
+        server.waitForMessage();
+
+        assertThat(withoutTimestamps(server.messagesReceived()),
+                contains("my.prefix.mytime,app=bar count=2i,sum=40,min=10,max=30,mean=20"));
+    }
+
+    @Test(timeout=5000L) public void
+    aggregates_bound_timers() throws Exception {
+
+        final StatsDTimer timer = client.timer("mytime");
+        timer.recordNanos(10500000L);
+        timer.recordNanos(29500000L);
+        client.flush(System.currentTimeMillis(), Long.MAX_VALUE, 0);
+        server.waitForMessage();
+
+        assertThat(withoutTimestamps(server.messagesReceived()),
+                contains("my.prefix.mytime,app=bar count=2i,sum=40,min=10.5,max=29.5,mean=20"));
+    }
+
+    @Test(timeout=5000L) public void
+    forgets_idle_series_without_losing_bound_timers() throws Exception {
+
+        final StatsDTimer timer = client.timer("mytime");
+        client.count("mycount", 1);
+        client.flush(System.currentTimeMillis(), Long.MAX_VALUE, 0);
+        final long retained = client.getRetainedSeriesBytes();
+        for (int i = 0; i < 30; i++) {
+            client.flush(System.currentTimeMillis(), Long.MAX_VALUE, 0);
+        }
+        assertThat(client.getRetainedSeriesBytes(), lessThan(retained));
+
+        timer.recordNanos(10000000L);
+        client.flush(System.currentTimeMillis(), Long.MAX_VALUE, 0);
+        while (server.messagesReceived().size() < 2) {
+            Thread.sleep(50L);
+        }
+
+        assertThat(withoutTimestamps(server.messagesReceived()), contains(
+                "my.prefix.mycount,app=bar count=1i",
+                "my.prefix.mytime,app=bar count=1i,sum=10,min=10,max=10,mean=10"));
+    }
+
+    @Test(timeout=5000L) public void
+    batches_series_into_one_datagram() throws Exception {
+
+        client.gauge("mygauge", 0.423, "baz");
+        client.histogram("myhistogram", 5);
+        client.flush(System.currentTimeMillis(), Long.MAX_VALUE, 0);
+        server.waitForMessage();
+
+        assertThat(withoutTimestamps(server.messagesReceived()), containsInAnyOrder(
+                "my.prefix.mygauge,app=bar,baz=true value=0.423",
+                "my.prefix.myhistogram,app=bar count=1i,sum=5,min=5,max=5,mean=5"));
+    }
+
+    @Test(timeout=5000L) public void
+    writes_remaining_values_on_stop() throws Exception {
+
+        client.gauge("mygauge", 7);
+        client.stop();
+        server.waitForMessage();
+
+        assertThat(withoutTimestamps(server.messagesReceived()), contains("my.prefix.mygauge,app=bar value=7"));
+        final String line = server.messagesReceived().get(0);
+        final long timestamp = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        assertEquals(0, timestamp % TimeUnit.HOURS.toNanos(1));
+    }
+
+    @Test(timeout=5000L) public void
+    passes_recording_failures_to_the_handler() throws Exception {
+        final List<Exception> exceptions = new ArrayList<Exception>();
+        final InfluxLineProtocolStatsDClient failing = new InfluxLineProtocolStatsDClient(
+                "my.prefix", null, LineProtocolTransports.udp("localhost", INFLUX_SERVER_PORT),
+                1, TimeUnit.HOURS, new StatsDClientErrorHandler() {
+                    @Override public void handle(Exception exception) {
+                        exceptions.add(exception);
+                    }
+                });
+
+        failing.count("mycount", 1, (String) null);
+        failing.recordHistogramValue("myhistogram", 2.5, (String) null);
+        failing.stop();
+
+        assertEquals(2, exceptions.size());
+    }
+
+    @Test(timeout=5000L) public void
+    escapes_series() throws Exception {
+        assertEquals("my.prefix.my\\ name,app=bar,a=b\\,c", client.series("my name", new String[] {"a=b,c"}));
+    }
+
+    @Test(timeout=5000L) public void
+    stamps_points_with_flush_boundary() throws Exception {
+
+        client.count("mycount", 1);
+        client.flush(1500000000000L, Long.MAX_VALUE, 0);
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount,app=bar count=1i 1500000000000000000"));
+        assertEquals(1, client.getLastFlushSeries());
+    }
+
+    @Test public void
+    aligns_flushes_to_interval_boundaries() throws Exception {
+        final FlushSchedule schedule = FlushSchedule.every(10, TimeUnit.SECONDS);
+
+        assertEquals(20000L, schedule.nextBoundary(12345L));
+        assertEquals(7655L, schedule.delayMillis(12345L));
+    }
+
+    @Test public void
+    jitters_flushes_by_instance() throws Exception {
+        final FlushSchedule one = FlushSchedule.every(10, TimeUnit.SECONDS).withJitter(5, TimeUnit.SECONDS, "one");
+        final FlushSchedule again = FlushSchedule.every(10, TimeUnit.SECONDS).withJitter(5, TimeUnit.SECONDS, "one");
+        final long jitter = one.jitterMillis();
+
+        assertEquals(jitter, again.jitterMillis());
+        assertEquals(20000L, one.nextBoundary(10000L + jitter));
+        assertEquals(10000L, one.delayMillis(10000L + jitter));
+        assertEquals(1L, one.delayMillis(20000L + jitter - 1));
+    }
+
+    @Test public void
+    refuses_jitter_or_spread_beyond_the_interval_whatever_the_instance() throws Exception {
+        final FlushSchedule schedule = FlushSchedule.every(10, TimeUnit.SECONDS);
+
+        for (String instance : new String[] { "one", "two", "three" }) {
+            try {
+                schedule.withJitter(10, TimeUnit.SECONDS, instance);
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertEquals("Flush jitter must be shorter than the flush interval", e.getMessage());
+            }
+        }
+        try {
+            schedule.spreadOver(11, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Flush spread must be between zero and the flush interval", e.getMessage());
+        }
+        try {
+            schedule.spreadOver(-1, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Flush spread must be between zero and the flush interval", e.getMessage());
+        }
+    }
+
+    private static List<String> withoutTimestamps(List<String> lines) {
+        final List<String> result = new ArrayList<String>();
+        for (String line : lines) {
+            result.add(line.substring(0, line.lastIndexOf(' ')));
+        }
+        return result;
+    }
+}
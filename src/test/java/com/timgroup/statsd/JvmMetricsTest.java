@@ -0,0 +1,85 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItems;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class JvmMetricsTest {
+
+    private final Set<String> series = Collections.synchronizedSet(new HashSet<String>());
+    private final StatsDServer server = new StatsDServer(0, -1, 1, 0, TimeUnit.SECONDS, new AggregateSink() {
+        @Override public void begin(long timestampMs) { }
+        @Override public void counter(String name, long count) { series.add(name); }
+        @Override public void gauge(String name, double value) { series.add(name); }
+        @Override public void distribution(String name, MetricType type, long count, double sum, double min, double max) {
+            series.add(name);
+        }
+        @Override public void end() { }
+    }, NonBlockingStatsDClient.NO_OP_HANDLER);
+    private final NonBlockingStatsDClient client = new NonBlockingStatsDClientBuilder()
+            .prefix("my.prefix")
+            .hostname("localhost")
+            .port(server.getUdpPort())
+            .build();
+
+    @After
+    public void stop() throws Exception {
+        client.stop();
+        server.stop();
+    }
+
+    @Test(timeout=10000L) public void
+    records_collections_memory_threads_and_buffer_pools() throws Exception {
+
+        final JvmMetrics metrics = new JvmMetrics(client, 20, TimeUnit.MILLISECONDS, 1.0);
+        System.gc();
+        while (!seen("my.prefix.jvm.gc.pause,") || !seen("my.prefix.jvm.threads.live")) {
+            Thread.sleep(50L);
+            server.flush();
+        }
+        metrics.stop();
+
+        assertThat(series, hasItems(
+                "my.prefix.jvm.memory.used,area=heap",
+                "my.prefix.jvm.memory.committed,area=nonheap",
+                "my.prefix.jvm.threads.live",
+                "my.prefix.jvm.buffer.capacity,pool=direct"));
+    }
+
+    @Test(timeout=10000L) public void
+    skips_samples_to_stay_within_budget() throws Exception {
+
+        final JvmMetrics metrics = new JvmMetrics(client, 1, TimeUnit.MILLISECONDS, 0.000001);
+        while (metrics.getSamplesSkipped() == 0) {
+            Thread.sleep(10L);
+        }
+        metrics.stop();
+    }
+
+    @Test public void
+    replaces_spaces_in_tag_values() throws Exception {
+
+        assertEquals("G1_Eden_Space", JvmMetrics.tagValue("G1 Eden Space"));
+        assertEquals("CodeHeap_non-profiled_nmethods", JvmMetrics.tagValue("CodeHeap 'non-profiled nmethods'"));
+    }
+
+    private boolean seen(String prefix) {
+        synchronized (series) {
+            for (String name : series) {
+                if (name.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,155 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link NonBlockingStatsDClient} at a configurable rate from a number of
+ * producer threads, against a {@link CountingStatsDServer}, and reports what
+ * arrived. Every metric is a gauge whose value is its send time, so that the server
+ * can measure delivery latency end to end.
+ *
+ * <p>Used by {@link NonBlockingStatsDClientSoakTest}; may also be run on its own
+ * for long soak runs:</p>
+ * <pre>
+ *   java com.timgroup.statsd.LoadHarness &lt;seconds&gt; &lt;producers&gt; &lt;rate per producer&gt; &lt;tag cardinality&gt; [port]
+ * </pre>
+ */
+final class LoadHarness {
+
+    private static final double PACKET_SIZE_BYTES = 1400.0;
+
+    private final int producers;
+    private final long ratePerProducer;
+    private final int cardinality;
+    private final long durationNanos;
+
+    /**
+     * @param producers
+     *     the number of recording threads
+     * @param ratePerProducer
+     *     metrics per second recorded by each thread, or 0 to record as fast as possible
+     * @param cardinality
+     *     the number of distinct series recorded, told apart by a tag
+     * @param duration
+     *     how long to record for
+     */
+    LoadHarness(int producers, long ratePerProducer, int cardinality, long duration, TimeUnit unit) {
+        this.producers = producers;
+        this.ratePerProducer = ratePerProducer;
+        this.cardinality = cardinality;
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    Report run(int port) throws Exception {
+        final CountingStatsDServer server = new CountingStatsDServer(port);
+        try {
+            return run(server, new NonBlockingStatsDClientBuilder()
+                    .prefix("load")
+                    .hostname("localhost")
+                    .port(port)
+                    .build());
+        } finally {
+            server.close();
+        }
+    }
+
+    Report run(CountingStatsDServer server, final NonBlockingStatsDClient client) throws Exception {
+        final String[] tags = new String[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+            tags[i] = "series=" + i;
+        }
+        final AtomicLong sent = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers);
+        final long start = System.nanoTime();
+        final long end = start + durationNanos;
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(new Runnable() {
+                @Override public void run() {
+                    final long intervalNanos = ratePerProducer == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / ratePerProducer;
+                    long count = 0;
+                    long next = start;
+                    while (true) {
+                        final long now = System.nanoTime();
+                        if (now - end >= 0) {
+                            break;
+                        }
+                        if (intervalNanos > 0 && next - now > 0) {
+                            LockSupport.parkNanos(next - now);
+                            continue;
+                        }
+                        client.gauge("latency", System.nanoTime(), tags[(int) ((count * producers + producer) % cardinality)]);
+                        count++;
+                        next += intervalNanos;
+                    }
+                    sent.addAndGet(count);
+                    done.countDown();
+                }
+            }, "LoadHarness-" + p);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        final long recordingNanos = System.nanoTime() - start;
+        client.stop(30, TimeUnit.SECONDS);
+        server.awaitLines(sent.get(), 1000L);
+        return new Report(sent.get(), server.lines(), server.packets(), server.bytes(), recordingNanos, server.latencies());
+    }
+
+    public static void main(String[] args) throws Exception {
+        final LoadHarness harness = new LoadHarness(Integer.parseInt(args[1]), Long.parseLong(args[2]),
+                Integer.parseInt(args[3]), Long.parseLong(args[0]), TimeUnit.SECONDS);
+        System.out.println(harness.run(args.length > 4 ? Integer.parseInt(args[4]) : 17258));
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    static final class Report {
+        final long sent;
+        final long received;
+        final long packets;
+        final long bytes;
+        final long nanos;
+        final long p50;
+        final long p99;
+        final long p999;
+        final long max;
+
+        Report(long sent, long received, long packets, long bytes, long nanos, CountingStatsDServer.LatencyHistogram latencies) {
+            this.sent = sent;
+            this.received = received;
+            this.packets = packets;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.p50 = latencies.percentile(50);
+            this.p99 = latencies.percentile(99);
+            this.p999 = latencies.percentile(99.9);
+            this.max = latencies.max();
+        }
+
+        double lossPercent() {
+            return sent == 0 ? 0 : 100.0 * (sent - received) / sent;
+        }
+
+        double throughputPerSecond() {
+            return received * 1e9 / nanos;
+        }
+
+        double packetFillPercent() {
+            return packets == 0 ? 0 : 100.0 * bytes / packets / PACKET_SIZE_BYTES;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d received=%d loss=%.3f%% throughput=%.0f/s packets=%d fill=%.1f%% "
+                    + "latency p50=%dus p99=%dus p99.9=%dus max=%dus",
+                    sent, received, lossPercent(), throughputPerSecond(), packets, packetFillPercent(),
+                    TimeUnit.NANOSECONDS.toMicros(p50), TimeUnit.NANOSECONDS.toMicros(p99),
+                    TimeUnit.NANOSECONDS.toMicros(p999), TimeUnit.NANOSECONDS.toMicros(max));
+        }
+    }
+}
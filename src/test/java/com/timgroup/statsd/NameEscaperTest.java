@@ -0,0 +1,47 @@
+package com.timgroup.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+
+public class NameEscaperTest {
+
+    @Test public void
+    leaves_safe_strings_alone() throws Exception {
+
+        final String aspect = "my.aspect-name_1";
+
+        assertSame(aspect, NameEscaper.STATSD_ASPECT.escape(aspect));
+        assertSame(aspect, NameEscaper.LINE_PROTOCOL_MEASUREMENT.escape(aspect));
+    }
+
+    @Test public void
+    replaces_what_would_corrupt_a_statsd_line() throws Exception {
+
+        assertEquals("a_b_c_d_e_f", NameEscaper.STATSD_ASPECT.escape("a,b c:d|e\nf"));
+        assertEquals("region=eu_west_1_a", NameEscaper.STATSD_TAG.escape("region=eu west:1=a"));
+        assertEquals("region:eu_west_1", NameEscaper.STATSD_TAG.escape("region:eu west=1"));
+        assertEquals("region:eu_west=1", NameEscaper.DOGSTATSD_TAG.escape("region:eu,west=1"));
+        assertEquals("host_1_p:low", NameEscaper.DOGSTATSD_FIELD.escape("host\n1|p:low"));
+    }
+
+    @Test public void
+    escapes_what_line_protocol_can_escape() throws Exception {
+
+        assertEquals("my\\ name\\,x", NameEscaper.LINE_PROTOCOL_MEASUREMENT.escape("my name,x"));
+        assertEquals("a\\ b=c\\=d\\,e_", NameEscaper.LINE_PROTOCOL_TAG.escape("a b=c=d,e\n"));
+        assertEquals("flag", NameEscaper.LINE_PROTOCOL_TAG.escape("flag"));
+    }
+
+    @Test public void
+    returns_the_cached_result_for_a_repeated_string() throws Exception {
+
+        final String first = NameEscaper.STATSD_TAG.escape("tenant=a b");
+        final String again = NameEscaper.STATSD_TAG.escape(new String("tenant=a b"));
+
+        assertEquals("tenant=a_b", first);
+        assertSame(first, again);
+    }
+}
@@ -1,7 +1,7 @@
 package com.timgroup.statsd;
 
 
-import java.net.SocketException;
+import java.io.IOException;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -19,11 +19,11 @@ public final class NonBlockingStatsDClientPerfTest {
     private static final Random RAND = new Random();
     private final NonBlockingStatsDClient client = new NonBlockingStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT);
     private final ExecutorService executor = Executors.newFixedThreadPool(20);
-    private DummyStatsDServer server;
+    private CountingStatsDServer server;
 
     @Before
-    public void start() throws SocketException {
-        server = new DummyStatsDServer(STATSD_SERVER_PORT);
+    public void start() throws IOException {
+        server = new CountingStatsDServer(STATSD_SERVER_PORT);
     }
 
     @After
@@ -48,12 +48,8 @@ public final class NonBlockingStatsDClientPerfTest {
         executor.shutdown();
         executor.awaitTermination(20, TimeUnit.SECONDS);
 
-        for(int i = 0; i < 20000 && server.messagesReceived().size() < testSize; i += 50) {
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException ex) {}
-        }
+        server.awaitLines(testSize, 20000L);
 
-        assertEquals(testSize, server.messagesReceived().size());
+        assertEquals(testSize, server.lines());
     }
 }
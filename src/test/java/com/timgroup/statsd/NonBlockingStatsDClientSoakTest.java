@@ -0,0 +1,38 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * A short load run by default, which only checks that metrics get through; set
+ * {@code statsd.soak.seconds}, {@code statsd.soak.producers}, {@code statsd.soak.rate}
+ * and {@code statsd.soak.cardinality} for a longer or heavier soak, which reports
+ * its results and fails on more than one percent loss.
+ */
+public final class NonBlockingStatsDClientSoakTest {
+
+    private static final int STATSD_SERVER_PORT = 17258;
+
+    @Test(timeout=600000L) public void
+    sustains_load_without_loss() throws Exception {
+
+        final LoadHarness harness = new LoadHarness(
+                Integer.getInteger("statsd.soak.producers", 4),
+                Long.getLong("statsd.soak.rate", 5000L),
+                Integer.getInteger("statsd.soak.cardinality", 100),
+                Long.getLong("statsd.soak.seconds", 2L), TimeUnit.SECONDS);
+
+        final LoadHarness.Report report = harness.run(STATSD_SERVER_PORT);
+
+        assertThat(report.received, greaterThan(0L));
+        if (System.getProperty("statsd.soak.seconds") != null) {
+            System.out.println(report);
+            assertThat(report.lossPercent(), lessThan(1.0));
+        }
+    }
+}
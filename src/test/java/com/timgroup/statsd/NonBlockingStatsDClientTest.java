@@ -2,10 +2,29 @@ package com.timgroup.statsd;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.After;
 import org.junit.Before;
@@ -69,6 +88,16 @@ public class NonBlockingStatsDClientTest {
         assertThat(server.messagesReceived(), contains("my.prefix.mycount,baz,foo=bar:24|c"));
     }
 
+    @Test(timeout=5000L) public void
+    sanitises_aspects_and_tags() throws Exception {
+
+
+        client.count("my count|x", 24, "foo=bar,baz", "host=a:b");
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.my_count_x,host=a_b,foo=bar_baz:24|c"));
+    }
+
     @Test(timeout=5000L) public void
     sends_counter_increment_to_statsd() throws Exception {
 
@@ -296,6 +325,26 @@ public class NonBlockingStatsDClientTest {
         assertThat(server.messagesReceived(), contains("top.level.value:423|g"));
     }
 
+    @Test(timeout=5000L) public void
+    sends_dogstatsd_tags() throws Exception {
+
+        final NonBlockingStatsDClient dogstatsd_client = new NonBlockingStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, new String[] {"app=bar"}, null, LineEncoders.DOGSTATSD);
+        dogstatsd_client.recordExecutionTime("mytime", 123, "foo=bar", "baz");
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mytime:123|ms|#app:bar,baz,foo:bar"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_untagged() throws Exception {
+
+        final NonBlockingStatsDClient untagged_client = new NonBlockingStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, new String[] {"app=bar"}, null, LineEncoders.UNTAGGED);
+        untagged_client.recordGaugeValue("mygauge", 0.423, "foo=bar");
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mygauge:0.423|g"));
+    }
+
     @Test(timeout=5000L) public void
     sends_nan_gauge_to_statsd() throws Exception {
         client.recordGaugeValue("mygauge", Double.NaN);
@@ -305,6 +354,396 @@ public class NonBlockingStatsDClientTest {
         assertThat(server.messagesReceived(), contains("my.prefix.mygauge:NaN|g"));
     }
 
+    @Test(timeout=5000L) public void
+    sends_over_connected_non_blocking_channel() throws Exception {
+
+        final NonBlockingStatsDClient connected_client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .connected(true)
+                .nonBlocking(true)
+                .socketSendBufferSize(64 * 1024)
+                .sendBufferFullPolicy(SendBufferFullPolicy.DROP)
+                .build();
+        try {
+            connected_client.gauge("mygauge", 423);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mygauge:423|g"));
+            assertEquals(0, connected_client.getPacketsDropped());
+        } finally {
+            connected_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_on_calling_thread() throws Exception {
+
+        final NonBlockingStatsDClient caller_runs_client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .callerRuns(true)
+                .build();
+        try {
+            caller_runs_client.count("mycount", 24);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c"));
+        } finally {
+            caller_runs_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_lingering_packet_on_calling_thread() throws Exception {
+
+        final NonBlockingStatsDClient caller_runs_client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .callerRuns(true)
+                .linger(100, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            caller_runs_client.count("mycount", 24);
+            caller_runs_client.gauge("mygauge", 423);
+            while(server.messagesReceived().size() < 2) {
+                Thread.sleep(50L);
+            }
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c", "my.prefix.mygauge:423|g"));
+        } finally {
+            caller_runs_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    follows_a_changed_address_after_its_ttl() throws Exception {
+
+        final DummyStatsDServer moved = new DummyStatsDServer(STATSD_SERVER_PORT + 5);
+        final AtomicReference<InetSocketAddress> target = new AtomicReference<InetSocketAddress>(
+                new InetSocketAddress("localhost", STATSD_SERVER_PORT));
+        final NonBlockingStatsDClient following = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix")
+                .addressTtl(100, TimeUnit.MILLISECONDS)
+                .addressLookup(new Callable<InetSocketAddress>() {
+                    @Override public InetSocketAddress call() {
+                        return target.get();
+                    }
+                })
+                .build();
+        try {
+            following.count("before", 1);
+            server.waitForMessage();
+
+            target.set(new InetSocketAddress("localhost", STATSD_SERVER_PORT + 5));
+            Thread.sleep(300L);
+            following.count("after", 1);
+            moved.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.before:1|c"));
+            assertThat(moved.messagesReceived(), contains("my.prefix.after:1|c"));
+        } finally {
+            following.stop();
+            moved.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_metrics_recorded_before_lazy_resolution() throws Exception {
+
+        final NonBlockingStatsDClient lazy_client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .connected(true)
+                .lazyInit(true)
+                .addressTtl(100, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            lazy_client.count("mycount", 24);
+            server.waitForMessage();
+            Thread.sleep(250L);
+            lazy_client.gauge("mygauge", 423);
+            while(server.messagesReceived().size() < 2) {
+                Thread.sleep(50L);
+            }
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c", "my.prefix.mygauge:423|g"));
+        } finally {
+            lazy_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_on_calling_thread_once_lazily_resolved() throws Exception {
+
+        final NonBlockingStatsDClient lazy_client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .callerRuns(true)
+                .lazyInit(true)
+                .build();
+        try {
+            lazy_client.count("mycount", 24);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c"));
+        } finally {
+            lazy_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    summarises_failures_once_per_interval() throws Exception {
+
+        final List<Exception> reported = Collections.synchronizedList(new ArrayList<Exception>());
+        final NonBlockingStatsDClient unreachable_client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT + 100)
+                .connected(true)
+                .errorHandler(new StatsDClientErrorHandler() {
+                    @Override public void handle(Exception exception) {
+                        reported.add(exception);
+                    }
+                })
+                .errorReportInterval(1, TimeUnit.HOURS)
+                .build();
+        for(int i = 0; i < 10; i++) {
+            unreachable_client.count("mycount", i);
+            Thread.sleep(20L);
+        }
+        unreachable_client.stop();
+
+        assertThat(reported.size(), lessThanOrEqualTo(2));
+        long total = 0;
+        for(Exception exception : reported) {
+            assertThat(exception, instanceOf(StatsDClientErrorSummary.class));
+            total += ((StatsDClientErrorSummary) exception).getCount(StatsDClientErrorSummary.Category.UNREACHABLE);
+        }
+        assertThat(total, greaterThan(0L));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_fractional_timer_to_statsd() throws Exception {
+
+        final StatsDTimer timer = client.timer("mytime", "foo=bar");
+        timer.recordNanos(1500000L);
+        timer.recordNanos(2000000L);
+        timer.recordNanos(12000345L);
+        while(server.messagesReceived().size() < 3) {
+            Thread.sleep(50L);
+        }
+
+        assertThat(server.messagesReceived(), contains(
+                "my.prefix.mytime,foo=bar:1.5|ms",
+                "my.prefix.mytime,foo=bar:2|ms",
+                "my.prefix.mytime,foo=bar:12.000345|ms"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_scoped_timer_to_statsd() throws Exception {
+
+        final StatsDTimer.Scope scope = client.timer("mytime").scope();
+        try (StatsDTimer.Scope timing = scope.start()) {
+            assertSame(scope, timing);
+            Thread.sleep(2L);
+        }
+        server.waitForMessage();
+
+        assertTrue(server.messagesReceived().get(0).matches("my\\.prefix\\.mytime:\\d+(\\.\\d+)?\\|ms"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_batch_in_one_packet() throws Exception {
+
+        client.batch()
+                .count("mycount", 24, "foo=bar")
+                .time("mytime", 123)
+                .gauge("mygauge", 0.5)
+                .send();
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains(
+                "my.prefix.mycount,foo=bar:24|c", "my.prefix.mytime:123|ms", "my.prefix.mygauge:0.5|g"));
+    }
+
+    @Test(timeout=5000L) public void
+    splits_batch_larger_than_a_packet() throws Exception {
+
+        final StatsDBatch batch = client.batch();
+        for(int i = 0; i < 200; i++) {
+            batch.count("mycount", i);
+        }
+        batch.send();
+        while(server.messagesReceived().size() < 200) {
+            Thread.sleep(50L);
+        }
+
+        assertEquals("my.prefix.mycount:199|c", server.messagesReceived().get(199));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_high_priority_metrics() throws Exception {
+
+        client.withPriority(Priority.HIGH).count("mycount", 24);
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    drops_metrics_beyond_lane_capacity() throws Exception {
+
+        final NonBlockingStatsDClient unresolved_client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix")
+                .hostname("statsd.invalid")
+                .port(STATSD_SERVER_PORT)
+                .lazyInit(true)
+                .lane(Priority.NORMAL, 10, LaneFullPolicy.DROP_NEWEST)
+                .build();
+        for(int i = 0; i < 100; i++) {
+            unresolved_client.count("mycount", i);
+        }
+        unresolved_client.withPriority(Priority.HIGH).count("mycount", 100);
+        final DrainResult result = unresolved_client.stop(0, TimeUnit.SECONDS);
+
+        assertEquals(90L, unresolved_client.getMetricsDropped(Priority.NORMAL));
+        assertEquals(0L, unresolved_client.getMetricsDropped(Priority.HIGH));
+        assertEquals(11L, result.getAbandoned());
+    }
+
+    @Test(timeout=5000L) public void
+    sends_event_to_statsd() throws Exception {
+
+        client.recordEvent(StatsDEvent.builder()
+                .title("Deployed")
+                .text("Version 1.2.3\nto prod")
+                .alertType(StatsDEvent.AlertType.SUCCESS)
+                .build(), "env=prod");
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("_e{8,22}:Deployed|Version 1.2.3\\nto prod|t:success|#env:prod"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_service_check_to_statsd() throws Exception {
+
+        client.recordServiceCheckRun(StatsDServiceCheck.builder()
+                .name("db")
+                .status(StatsDServiceCheck.Status.CRITICAL)
+                .message("refused")
+                .build(), "env=prod");
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("_sc|db|2|#env:prod|m:refused"));
+    }
+
+    @Test(timeout=5000L) public void
+    truncates_event_text_to_fit_a_packet() throws Exception {
+
+        final StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 5000; i++) {
+            text.append('x');
+        }
+        client.recordEvent(StatsDEvent.builder().title("Long").text(text.toString()).build());
+        server.waitForMessage();
+
+        final String line = server.messagesReceived().get(0);
+        assertTrue(line.startsWith("_e{4,1384}:Long|xxx"));
+        assertEquals(1400, line.length());
+    }
+
+    @Test(timeout=10000L) public void
+    records_sender_flushes_to_flight_recorder() throws Exception {
+
+        final File dump = File.createTempFile("statsd", ".jfr");
+        try {
+            final Recording recording = new Recording();
+            recording.enable("com.timgroup.statsd.SenderFlush").withThreshold(Duration.ZERO);
+            recording.start();
+            client.count("mycount", 24);
+            /* the event is committed just after the packet is sent */
+            List<RecordedEvent> events;
+            do {
+                Thread.sleep(50L);
+                recording.dump(dump.toPath());
+                events = RecordingFile.readAllEvents(dump.toPath());
+            } while(events.isEmpty());
+            recording.close();
+
+            assertEquals(1, events.size());
+            assertEquals(1, events.get(0).getInt("lines"));
+            assertEquals("my.prefix.mycount:24|c".length(), events.get(0).getInt("bytes"));
+        } finally {
+            dump.delete();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    drains_queue_on_stop() throws Exception {
+
+        for(int i = 0; i < 1000; i++) {
+            client.count("mycount", i);
+        }
+        final DrainResult result = client.stop(5, TimeUnit.SECONDS);
+
+        while(server.messagesReceived().size() < 1000) {
+            Thread.sleep(50L);
+        }
+        assertEquals(0, result.getAbandoned());
+        assertEquals(1000, server.messagesReceived().size());
+    }
+
+    @Test(expected=IllegalStateException.class) public void
+    refuses_to_spill_on_the_callers_threads() throws Exception {
+
+        new NonBlockingStatsDClientBuilder()
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .callerRuns(true)
+                .spill(new File("statsd-spill"), 1024)
+                .build();
+    }
+
+    @Test(timeout=10000L) public void
+    spills_packets_while_the_server_is_unreachable_and_replays_them() throws Exception {
+
+        final File directory = Files.createTempDirectory("statsd-spill").toFile();
+        final NonBlockingStatsDClient spilling = new NonBlockingStatsDClientBuilder()
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .connected(true)
+                .spill(directory, 1024 * 1024)
+                .build();
+        try {
+            server.close();
+            for(int i = 0; spilling.getPacketsSpilled() < 3; i++) {
+                spilling.count("mycount", i);
+                Thread.sleep(20L);
+            }
+            server = new DummyStatsDServer(STATSD_SERVER_PORT);
+
+            while(spilling.getPacketsReplayed() < spilling.getPacketsSpilled()) {
+                Thread.sleep(50L);
+            }
+            server.waitForMessage();
+            assertTrue(server.messagesReceived().get(0).startsWith("mycount:"));
+            assertEquals(0, spilling.getPacketsSpillDropped());
+            assertEquals(0, spilling.getSpillBytes());
+        } finally {
+            spilling.stop();
+            for(File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
     @Test(timeout=5000L) public void
     tagWithNoPrefix() throws Exception{
     	String tagString = client.tagString( new String[]{"a=b", "c=d"}, null );
@@ -0,0 +1,52 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Compares the cost of sending a packet from a heap buffer, which the JDK first
+ * copies into a temporary direct buffer of its own, with sending it from a direct
+ * buffer, as {@link NonBlockingStatsDClient} does:
+ * <pre>
+ *   java com.timgroup.statsd.PacketBufferBenchmark [packets] [port]
+ * </pre>
+ */
+final class PacketBufferBenchmark {
+
+    private static final int PACKET_SIZE_BYTES = 1400;
+
+    private PacketBufferBenchmark() { }
+
+    public static void main(String[] args) throws IOException {
+        final int packets = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final InetSocketAddress address = new InetSocketAddress("localhost", args.length > 1 ? Integer.parseInt(args[1]) : 8125);
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            /* warm up both paths before measuring */
+            timeSends(channel, address, ByteBuffer.allocate(PACKET_SIZE_BYTES), packets / 10);
+            timeSends(channel, address, ByteBuffer.allocateDirect(PACKET_SIZE_BYTES), packets / 10);
+
+            final long heapNanos = timeSends(channel, address, ByteBuffer.allocate(PACKET_SIZE_BYTES), packets);
+            final long directNanos = timeSends(channel, address, ByteBuffer.allocateDirect(PACKET_SIZE_BYTES), packets);
+
+            System.out.println(String.format("heap buffer: %d ns/packet, direct buffer: %d ns/packet",
+                    heapNanos / packets, directNanos / packets));
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static long timeSends(DatagramChannel channel, InetSocketAddress address, ByteBuffer packet, int count) throws IOException {
+        while (packet.hasRemaining()) {
+            packet.put((byte) 'x');
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            packet.clear();
+            channel.send(packet, address);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,65 @@
+package com.timgroup.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class PriorityLanesTest {
+
+    private final PriorityLanes<String> lanes = new PriorityLanes<String>(
+            new int[] { 100, 3 },
+            new LaneFullPolicy[] { LaneFullPolicy.DROP_NEWEST, LaneFullPolicy.DROP_OLDEST },
+            new int[] { 2, 1 });
+
+    @Test public void
+    drains_lanes_in_weighted_round_robin() throws Exception {
+
+        for(int i = 0; i < 3; i++) {
+            lanes.offer("normal" + i, Priority.NORMAL);
+        }
+        for(int i = 0; i < 5; i++) {
+            lanes.offer("high" + i, Priority.HIGH);
+        }
+
+        final StringBuilder order = new StringBuilder();
+        String element;
+        while(null != (element = lanes.poll())) {
+            order.append(element).append(' ');
+        }
+
+        assertEquals("high0 high1 normal0 high2 high3 normal1 high4 normal2 ", order.toString());
+    }
+
+    @Test public void
+    drops_oldest_when_lane_is_full() throws Exception {
+
+        for(int i = 0; i < 5; i++) {
+            lanes.offer("normal" + i, Priority.NORMAL);
+        }
+
+        assertEquals(2L, lanes.dropped(Priority.NORMAL));
+        assertEquals("normal2", lanes.poll());
+    }
+
+    @Test(timeout=5000L) public void
+    wakes_waiting_consumer_on_offer() throws Exception {
+
+        final Thread producer = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException e) {
+                }
+                lanes.offer("high0", Priority.HIGH);
+            }
+        });
+        producer.start();
+
+        assertEquals("high0", lanes.poll(10, TimeUnit.SECONDS));
+        assertNull(lanes.poll(10, TimeUnit.MILLISECONDS));
+    }
+}
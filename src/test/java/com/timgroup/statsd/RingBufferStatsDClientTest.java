@@ -0,0 +1,171 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class RingBufferStatsDClientTest {
+
+    private static final int STATSD_SERVER_PORT = 17257;
+    private DummyStatsDServer server;
+    private File ringFile;
+    private RingBufferForwarder forwarder;
+
+    @Before
+    public void start() throws Exception {
+        server = new DummyStatsDServer(STATSD_SERVER_PORT);
+        ringFile = File.createTempFile("statsd", ".ring");
+        ringFile.delete();
+        forwarder = new RingBufferForwarder(Collections.singletonList(ringFile), "localhost", STATSD_SERVER_PORT, null);
+        final Thread thread = new Thread(forwarder);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void stop() throws Exception {
+        forwarder.stop();
+        server.close();
+        ringFile.delete();
+    }
+
+    @Test(timeout=5000L) public void
+    forwards_lines_from_ring() throws Exception {
+
+        final RingBufferStatsDClient client = new RingBufferStatsDClient("my.prefix", ringFile, "app=bar");
+        client.count("mycount", 24, "foo=bar");
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount,app=bar,foo=bar:24|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    forwards_fractional_timer_lines() throws Exception {
+
+        final StatsDTimer timer = new RingBufferStatsDClient("my.prefix", ringFile).timer("mytime", "foo=bar");
+        timer.recordNanos(1500000L);
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mytime,foo=bar:1.5|ms"));
+    }
+
+    @Test(timeout=5000L) public void
+    forwards_lines_after_producer_restart() throws Exception {
+
+        new RingBufferStatsDClient("my.prefix", ringFile).count("before", 1);
+        server.waitForMessage();
+
+        new RingBufferStatsDClient("my.prefix", ringFile).count("after", 1);
+        while (server.messagesReceived().size() < 2) {
+            Thread.sleep(50L);
+        }
+
+        assertThat(server.messagesReceived(), contains("my.prefix.before:1|c", "my.prefix.after:1|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    forwards_lines_from_a_replaced_ring_file() throws Exception {
+
+        new RingBufferStatsDClient("my.prefix", ringFile).count("before", 1);
+        server.waitForMessage();
+
+        ringFile.delete();
+        new RingBufferStatsDClient("my.prefix", ringFile).count("after", 1);
+        while (server.messagesReceived().size() < 2) {
+            Thread.sleep(50L);
+        }
+
+        assertThat(server.messagesReceived(), contains("my.prefix.before:1|c", "my.prefix.after:1|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    skips_only_the_claims_a_restarted_producer_left_unpublished() throws Exception {
+
+        forwarder.stop();
+        final File abandoned = File.createTempFile("statsd", ".ring");
+        try {
+            final MappedRingBuffer producer = MappedRingBuffer.openForProducer(abandoned, 4096);
+            producer.offer(ByteBuffer.wrap("first".getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET)));
+            producer.offer(ByteBuffer.wrap("claimed".getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET)));
+            producer.offer(ByteBuffer.wrap("third".getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET)));
+            /* turn the second record back into a claim its producer died before publishing */
+            try (RandomAccessFile raf = new RandomAccessFile(abandoned, "rw")) {
+                final ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+                header.putInt(0, 0x40000000 | 16);
+                raf.getChannel().write(header, MappedRingBuffer.DATA_OFFSET + 16);
+            }
+            final MappedRingBuffer consumer = MappedRingBuffer.openForConsumer(abandoned);
+            final ByteBuffer target = ByteBuffer.allocate(100);
+            assertEquals(5, consumer.poll(target));
+            assertEquals(0, consumer.poll(target));
+
+            MappedRingBuffer.openForProducer(abandoned, 4096);
+            assertEquals(5, consumer.poll(target));
+            assertEquals(0, consumer.poll(target));
+
+            assertEquals("firstthird", new String(target.array(), 0, target.position(), NonBlockingStatsDClient.MESSAGE_CHARSET));
+            assertEquals(1, consumer.overruns());
+        } finally {
+            abandoned.delete();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    forwards_lines_which_exactly_fill_a_packet() throws Exception {
+
+        final File queued = File.createTempFile("statsd", ".ring");
+        queued.delete();
+        final RingBufferForwarder another = new RingBufferForwarder(Collections.singletonList(queued), "localhost", STATSD_SERVER_PORT, null);
+        try {
+            /* three lines of 466 bytes and their two separators make exactly 1400 bytes */
+            final String aspect = new String(new char[452]).replace('\0', 'x');
+            final RingBufferStatsDClient client = new RingBufferStatsDClient("my.prefix", queued);
+            for (int i = 0; i < 4; i++) {
+                client.count(aspect, i);
+            }
+            final Thread thread = new Thread(another);
+            thread.setDaemon(true);
+            thread.start();
+
+            while (another.getLinesForwarded() < 4) {
+                Thread.sleep(50L);
+            }
+            while (server.messagesReceived().size() < 4) {
+                Thread.sleep(50L);
+            }
+            assertEquals(0, another.getLinesDropped());
+        } finally {
+            another.stop();
+            queued.delete();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    counts_overruns_when_ring_is_full() throws Exception {
+
+        forwarder.stop();
+        final File unforwarded = File.createTempFile("statsd", ".ring");
+        try {
+            final RingBufferStatsDClient client = new RingBufferStatsDClient("my.prefix", unforwarded, 4096, null, null, LineEncoders.INFLUX);
+            for (int i = 0; i < 1000; i++) {
+                client.gauge("mygauge", i);
+            }
+
+            assertThat(client.getOverruns(), greaterThan(0L));
+        } finally {
+            unforwarded.delete();
+        }
+    }
+}
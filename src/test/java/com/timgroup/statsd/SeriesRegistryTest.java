@@ -0,0 +1,129 @@
+package com.timgroup.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class SeriesRegistryTest {
+
+    private final SeriesRegistry<Object> registry = new SeriesRegistry<Object>(100);
+
+    private final SeriesRegistry.Factory<Object> factory = new SeriesRegistry.Factory<Object>() {
+        @Override public Object create(String aspect, String[] tags) {
+            return new Object();
+        }
+    };
+
+    @Test public void
+    returns_the_same_state_for_the_same_series() throws Exception {
+
+        final Object first = registry.get("requests", new String[] {"region=eu"}, factory);
+
+        assertSame(first, registry.get("requests", new String[] {"region=eu"}, factory));
+        assertNotSame(first, registry.get("requests", new String[] {"region=us"}, factory));
+        assertNotSame(first, registry.get("requests", new String[0], factory));
+        assertEquals(3, registry.size());
+    }
+
+    @Test public void
+    keeps_series_with_colliding_hashes_apart() throws Exception {
+
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertEquals(SeriesRegistry.hash("x", new String[] {"Aa"}), SeriesRegistry.hash("x", new String[] {"BB"}));
+
+        final Object aa = registry.get("x", new String[] {"Aa"}, factory);
+        final Object bb = registry.get("x", new String[] {"BB"}, factory);
+
+        assertNotSame(aa, bb);
+        assertSame(aa, registry.get("x", new String[] {"Aa"}, factory));
+        assertSame(bb, registry.get("x", new String[] {"BB"}, factory));
+    }
+
+    @Test public void
+    keeps_every_series_across_growth() throws Exception {
+
+        final List<Object> created = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            created.add(registry.get("series" + i, null, factory));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertSame(created.get(i), registry.get("series" + i, null, factory));
+        }
+        final List<Object> values = new ArrayList<Object>();
+        registry.addValuesTo(values);
+        assertEquals(100, values.size());
+    }
+
+    @Test public void
+    stops_holding_series_beyond_the_limit() throws Exception {
+
+        for (int i = 0; i < 100; i++) {
+            registry.get("series" + i, null, factory);
+        }
+
+        assertNotSame(registry.get("one.too.many", null, factory), registry.get("one.too.many", null, factory));
+        assertEquals(100, registry.size());
+    }
+
+    @Test public void
+    drops_series_idle_for_too_long() throws Exception {
+
+        final SeriesRegistry<Object> expiring = new SeriesRegistry<Object>(100, new SeriesRegistry.Retention<Object>() {
+            @Override public boolean isExpired(Object value, int idleTicks) {
+                return idleTicks > 1;
+            }
+
+            @Override public long bytes(Object value) {
+                return 16;
+            }
+        });
+        final Object busy = expiring.get("busy", null, factory);
+        final Object idle = expiring.get("idle", null, factory);
+        final long retained = expiring.retainedBytes();
+
+        final List<Object> expired = new ArrayList<Object>();
+        for (int i = 0; i < 3; i++) {
+            expiring.get("busy", null, factory);
+            expiring.expire(Integer.MAX_VALUE, expired);
+        }
+
+        assertEquals(1, expiring.size());
+        assertEquals(1, expired.size());
+        assertSame(idle, expired.get(0));
+        assertSame(busy, expiring.get("busy", null, factory));
+        assertNotSame(idle, expiring.get("idle", null, factory));
+        assertEquals(retained, expiring.retainedBytes());
+    }
+
+    @Test public void
+    reuses_the_slots_of_dropped_series() throws Exception {
+
+        final SeriesRegistry<Object> expiring = new SeriesRegistry<Object>(1000, new SeriesRegistry.Retention<Object>() {
+            @Override public boolean isExpired(Object value, int idleTicks) {
+                return idleTicks > 0;
+            }
+
+            @Override public long bytes(Object value) {
+                return 0;
+            }
+        });
+        final long[] retained = new long[100];
+        for (int round = 0; round < retained.length; round++) {
+            for (int i = 0; i < 100; i++) {
+                expiring.get("series" + round + "." + i, null, factory);
+            }
+            expiring.expire(Integer.MAX_VALUE, null);
+            retained[round] = expiring.retainedBytes();
+        }
+
+        assertEquals(0, expiring.size());
+        assertEquals(retained[10], retained[99]);
+    }
+}
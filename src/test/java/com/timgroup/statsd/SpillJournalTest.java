@@ -0,0 +1,101 @@
+package com.timgroup.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class SpillJournalTest {
+
+    private final File directory;
+
+    public SpillJournalTest() throws Exception {
+        directory = Files.createTempDirectory("statsd-spill").toFile();
+    }
+
+    @After
+    public void delete() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test public void
+    replays_packets_in_order_across_segments_and_reopening() throws Exception {
+
+        final SpillJournal journal = new SpillJournal(directory, 64, 1024);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(journal.append(packet("packet" + i)));
+        }
+        assertEquals("packet0", read(journal));
+        assertEquals("packet1", read(journal));
+        journal.close();
+
+        final SpillJournal reopened = new SpillJournal(directory, 64, 1024);
+        final List<String> replayed = new ArrayList<String>();
+        while (!reopened.isEmpty()) {
+            replayed.add(read(reopened));
+        }
+
+        assertEquals(8, replayed.size());
+        assertEquals("packet2", replayed.get(0));
+        assertEquals("packet9", replayed.get(7));
+        assertEquals(0, reopened.bytes());
+        /* only the lock file is left */
+        assertEquals(1, directory.listFiles().length);
+        reopened.close();
+    }
+
+    @Test public void
+    refuses_a_directory_in_use_by_another_journal() throws Exception {
+
+        final SpillJournal journal = new SpillJournal(directory, 64, 1024);
+        try {
+            new SpillJournal(directory, 64, 1024);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("in use"));
+        }
+        journal.close();
+
+        new SpillJournal(directory, 64, 1024).close();
+    }
+
+    @Test public void
+    refuses_packets_beyond_its_cap() throws Exception {
+
+        final SpillJournal journal = new SpillJournal(directory, 64, 128);
+        int appended = 0;
+        while (journal.append(packet("packet" + appended))) {
+            appended++;
+        }
+
+        assertEquals(128, journal.bytes());
+        assertEquals("packet0", read(journal));
+        assertFalse(journal.append(packet(new String(new char[64]))));
+        journal.close();
+    }
+
+    private static ByteBuffer packet(String content) {
+        return ByteBuffer.wrap(content.getBytes(NonBlockingStatsDClient.MESSAGE_CHARSET));
+    }
+
+    private static String read(SpillJournal journal) {
+        final ByteBuffer buffer = ByteBuffer.allocate(100);
+        assertTrue(journal.peek(buffer));
+        journal.advance();
+        return new String(buffer.array(), 0, buffer.position(), NonBlockingStatsDClient.MESSAGE_CHARSET);
+    }
+}
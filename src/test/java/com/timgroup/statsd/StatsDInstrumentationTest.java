@@ -0,0 +1,132 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class StatsDInstrumentationTest {
+
+    private final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+    private final StatsDServer server = new StatsDServer(0, -1, 1, 0, TimeUnit.SECONDS, new AggregateSink() {
+        @Override public void begin(long timestampMs) { }
+        @Override public void counter(String series, long count) { lines.add(series + " " + count); }
+        @Override public void gauge(String series, double value) { lines.add(series + " " + value); }
+        @Override public void distribution(String series, MetricType type, long count, double sum, double min, double max) {
+            lines.add(series + " " + type + " " + count);
+        }
+        @Override public void end() { }
+    }, NonBlockingStatsDClient.NO_OP_HANDLER);
+    private final NonBlockingStatsDClient client = new NonBlockingStatsDClientBuilder()
+            .prefix("my.prefix")
+            .hostname("localhost")
+            .port(server.getUdpPort())
+            .build();
+
+    @After
+    public void stop() throws Exception {
+        client.stop();
+        server.stop();
+    }
+
+    public interface Repository {
+        @Timed(value = "repository.find", tags = "store=orders")
+        String find(long id);
+
+        String name();
+
+        void delete(long id);
+    }
+
+    static final class InMemoryRepository implements Repository {
+        @Override public String find(long id) {
+            return "order" + id;
+        }
+
+        @Override public String name() {
+            return "memory";
+        }
+
+        @Counted("repository.delete")
+        @Override public void delete(long id) {
+            throw new IllegalStateException("read only");
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    records_annotated_methods_of_the_interface_and_the_implementation() throws Exception {
+
+        final Repository repository = StatsDInstrumentation.instrument(Repository.class, new InMemoryRepository(), client);
+
+        assertEquals("order1", repository.find(1));
+        assertEquals("order2", repository.find(2));
+        assertEquals("memory", repository.name());
+        try {
+            repository.delete(3);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("read only", e.getMessage());
+        }
+        client.stop();
+        while (server.getLinesReceived() < 3) {
+            Thread.sleep(10L);
+        }
+        server.flush();
+
+        assertThat(lines, containsInAnyOrder(
+                "my.prefix.repository.find,store=orders TIMER 2",
+                "my.prefix.repository.delete 1"));
+    }
+
+    interface Hidden {
+        @Counted("hidden.fail")
+        void fail();
+    }
+
+    @Test(timeout=5000L) public void
+    calls_methods_of_interfaces_which_are_not_public_through_reflection() throws Exception {
+
+        final Hidden hidden = StatsDInstrumentation.instrument(Hidden.class, new Hidden() {
+            @Override public void fail() {
+                throw new IllegalStateException("hidden");
+            }
+        }, client);
+
+        try {
+            hidden.fail();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("hidden", e.getMessage());
+        }
+        client.stop();
+        while (server.getLinesReceived() < 1) {
+            Thread.sleep(10L);
+        }
+        server.flush();
+
+        assertThat(lines, containsInAnyOrder("my.prefix.hidden.fail 1"));
+    }
+
+    @Test(timeout=5000L) public void
+    answers_object_methods_for_the_proxy_itself() throws Exception {
+
+        final InMemoryRepository target = new InMemoryRepository();
+        final Repository repository = StatsDInstrumentation.instrument(Repository.class, target, client);
+
+        assertTrue(repository.equals(repository));
+        assertFalse(repository.equals(target));
+        assertEquals(System.identityHashCode(repository), repository.hashCode());
+        assertEquals("instrumented " + target, repository.toString());
+    }
+}
@@ -0,0 +1,159 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class StatsDServerTest {
+
+    private final CollectingSink sink = new CollectingSink();
+    private final StatsDServer server = new StatsDServer(0, 0, 2, 0, TimeUnit.SECONDS, sink, NO_OP_HANDLER);
+
+    @After
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    @Test(timeout=5000L) public void
+    aggregates_lines_from_a_client_over_udp() throws Exception {
+
+        final NonBlockingStatsDClient client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(server.getUdpPort())
+                .build();
+        client.count("requests", 2, "region=eu");
+        client.count("requests", 3, "region=eu");
+        client.count("requests", 7, "region=us");
+        client.gauge("heap", 10);
+        client.gauge("heap", 12);
+        client.time("latency", 4);
+        client.time("latency", 10);
+        client.stop();
+        awaitLines(7);
+
+        server.flush();
+
+        assertThat(sink.lines, containsInAnyOrder(
+                "counter my.prefix.requests,region=eu 5",
+                "counter my.prefix.requests,region=us 7",
+                "gauge my.prefix.heap 12.0",
+                "TIMER my.prefix.latency count=2 sum=14.0 min=4.0 max=10.0"));
+        assertEquals(1, sink.flushes);
+    }
+
+    @Test(timeout=5000L) public void
+    reassembles_lines_split_across_tcp_reads() throws Exception {
+
+        final Socket socket = new Socket("localhost", server.getTcpPort());
+        final OutputStream out = socket.getOutputStream();
+        out.write("a:1|c\nb:2".getBytes("UTF-8"));
+        out.flush();
+        Thread.sleep(100L);
+        out.write(".5|h\na:2|c|@0.5\nb:-1e1|h".getBytes("UTF-8"));
+        socket.close();
+        awaitLines(4);
+
+        server.flush();
+
+        assertThat(sink.lines, containsInAnyOrder(
+                "counter a 5",
+                "HISTOGRAM b count=2 sum=-7.5 min=-10.0 max=2.5"));
+    }
+
+    @Test(timeout=5000L) public void
+    counts_and_skips_lines_which_cannot_be_parsed() throws Exception {
+
+        final Socket socket = new Socket("localhost", server.getTcpPort());
+        socket.getOutputStream().write("no.value|c\nx:abc|c\nx:1|q\n:1|c\nx:1|c|@2\nok:1|g\n".getBytes("UTF-8"));
+        socket.close();
+        awaitLines(6);
+
+        server.flush();
+
+        assertEquals(5L, server.getLinesRejected());
+        assertThat(sink.lines, contains("gauge ok 1.0"));
+    }
+
+    @Test(timeout=5000L) public void
+    discards_a_line_longer_than_the_buffer_through_its_newline() throws Exception {
+
+        final StringBuilder overlong = new StringBuilder();
+        while (overlong.length() < 100 * 1024) {
+            overlong.append("x");
+        }
+        final Socket socket = new Socket("localhost", server.getTcpPort());
+        socket.getOutputStream().write((overlong + ":5|c\nok:1|c\n").getBytes("UTF-8"));
+        socket.close();
+        awaitLines(2);
+
+        server.flush();
+
+        assertEquals(1L, server.getLinesRejected());
+        assertThat(sink.lines, contains("counter ok 1"));
+    }
+
+    @Test(timeout=5000L) public void
+    only_passes_series_recorded_in_the_interval() throws Exception {
+
+        final Socket socket = new Socket("localhost", server.getTcpPort());
+        final OutputStream out = socket.getOutputStream();
+        out.write("a:1|c\nb:1|c\n".getBytes("UTF-8"));
+        out.flush();
+        awaitLines(2);
+        server.flush();
+        sink.lines.clear();
+
+        out.write("b:4|c\n".getBytes("UTF-8"));
+        out.flush();
+        awaitLines(3);
+        server.flush();
+        socket.close();
+
+        assertThat(sink.lines, contains("counter b 4"));
+    }
+
+    private void awaitLines(long expected) throws InterruptedException {
+        while (server.getLinesReceived() < expected) {
+            Thread.sleep(10L);
+        }
+    }
+
+    private static final StatsDClientErrorHandler NO_OP_HANDLER = new StatsDClientErrorHandler() {
+        @Override public void handle(Exception exception) { /* no-op */ }
+    };
+
+    private static final class CollectingSink implements AggregateSink {
+        final List<String> lines = new ArrayList<String>();
+        int flushes;
+
+        @Override public void begin(long timestampMs) { }
+
+        @Override public void counter(String series, long count) {
+            lines.add("counter " + series + " " + count);
+        }
+
+        @Override public void gauge(String series, double value) {
+            lines.add("gauge " + series + " " + value);
+        }
+
+        @Override public void distribution(String series, MetricType type, long count, double sum, double min, double max) {
+            lines.add(type + " " + series + " count=" + count + " sum=" + sum + " min=" + min + " max=" + max);
+        }
+
+        @Override public void end() {
+            flushes++;
+        }
+    }
+}